@@ -16,6 +16,19 @@ import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -28,12 +41,42 @@ public class SQLite {
     // location on the file system for use by this wrapper, native libs will be deployed here
     public static final File SQLITE_HOME = new File(System.getProperty("user.home"), ".sqlite");
 
-    // instance of this class for storage database metadata, versions, etc
-    private static SQLite s_infoDb;
+    // serializes opening and closing the info db, which migrations of different dbs share
+    private static final Object s_infoLock = new Object();
 
     // static Map containing instances of this class by Def and DB File
     private static Map<Class<? extends Def>, Map<File, SQLite>> s_dbMap = new HashMap<Class<? extends Def>, Map<File, SQLite>>();
 
+    // instances with a running job q, least recently used first, used to limit how many are open at once
+    private static final LinkedHashMap<SQLite, Boolean> s_open = new LinkedHashMap<SQLite, Boolean>(16, 0.75f, true);
+
+    // maximum number of instances with a running job q, 0 for no limit
+    private static int s_maxOpen = 0;
+
+    // milliseconds an instance can sit unused before its job q is stopped, 0 to never stop it
+    private static long s_idleTimeout = 0;
+
+    private static ScheduledFuture<?> s_idleCheck;
+    private static ScheduledFuture<?> s_maintenanceCheck;
+
+    // milliseconds between looking for idle instances that are due for maintenance
+    private static final long MAINTENANCE_CHECK = 5000;
+
+    // receives the slow query log, when null it goes to s_log
+    private static volatile SlowQueryListener s_slowQueryListener;
+
+    // maximum number of query plans cached per instance
+    private static final int MAX_PLANS = 500;
+
+    // busy timeout for connections shared with other instances through attach(..)
+    private static final long ATTACH_BUSY_TIMEOUT = 10000;
+
+    // table that holds the changes captured for Def.capture(..)
+    public static final String CHANGE_LOG = "_changes";
+
+    // version number of the native SQLite library, looked up the first time it's needed
+    private static volatile int s_sqliteVersion = -1;
+
     // a Logger
     private static Logger s_log = Logger.getLogger(SQLite.class.getName());
 
@@ -70,16 +113,6 @@ public class SQLite {
         }
         System.setProperty(com.almworks.sqlite4java.SQLite.LIBRARY_PATH_PROPERTY, libs.getAbsolutePath());
 
-        // initialize the metadata info db
-        Def infoDef = new Info();
-        s_infoDb = new SQLite(infoDef, new File(SQLITE_HOME, infoDef.getName()));
-        try {
-            s_infoDb.execute(s_infoDb.def().getSchemaUpdates().get(0));
-        }
-        catch (SQLiteException e) {
-            s_log.severe(e.getMessage());
-        }
-
     }
 
     /**
@@ -100,12 +133,6 @@ public class SQLite {
      * @throws SQLiteException
      */
     public static <T extends Def> SQLite db(Class<T> defClass, File dbFile) throws SQLiteException {
-        Map<File, SQLite> fileDbMap = s_dbMap.get(defClass);
-        if (fileDbMap == null) {
-            fileDbMap = new HashMap<File, SQLite>();
-            s_dbMap.put(defClass, fileDbMap);
-        }
-
         Def def = null;
         try {
             def = defClass.newInstance();
@@ -121,11 +148,33 @@ public class SQLite {
             dbFile = new File(SQLITE_HOME, def.getName());
         }
 
-        SQLite db = fileDbMap.get(dbFile);
-        if (db == null || db._q.isStopped()) {
-            db = new SQLite(def, dbFile);
-            db.migrate();
-            fileDbMap.put(dbFile, db);
+        // an evicted instance is still usable, it reopens on its next job
+        SQLite db;
+        Map<File, SQLite> fileDbMap;
+        synchronized (SQLite.class) {
+            fileDbMap = s_dbMap.get(defClass);
+            if (fileDbMap == null) {
+                fileDbMap = new HashMap<File, SQLite>();
+                s_dbMap.put(defClass, fileDbMap);
+            }
+            db = fileDbMap.get(dbFile);
+            if (db == null || (db._q.isStopped() && !db._evicted)) {
+                db = new SQLite(def, dbFile);
+                fileDbMap.put(dbFile, db);
+            }
+        }
+
+        // migrated outside the class lock so a slow migration only holds up callers of the same db
+        try {
+            db.migrateOnce();
+        }
+        catch (SQLiteException e) {
+            synchronized (SQLite.class) {
+                if (fileDbMap.get(dbFile) == db) {
+                    fileDbMap.remove(dbFile);
+                }
+            }
+            throw e;
         }
         return db;
     }
@@ -135,14 +184,220 @@ public class SQLite {
      * @return
      */
     public static SQLite info() {
-        return s_infoDb;
+        return InfoHolder.DB;
+    }
+
+    /**
+     * Creates the metadata db the first time it's used.  Not done in the static initializer:
+     * the job that creates the versions table runs on the job q's thread and calls back into
+     * this class, which would wait forever for the initializer to finish.
+     */
+    private static class InfoHolder {
+        static final SQLite DB = create();
+
+        private static SQLite create() {
+            Def infoDef = new Info();
+            SQLite db = new SQLite(infoDef, new File(SQLITE_HOME, infoDef.getName()));
+            try {
+                db.execute(db.def().getSchemaUpdates().get(0));
+            }
+            catch (SQLiteException e) {
+                s_log.severe(e.getMessage());
+            }
+            return db;
+        }
+    }
+
+    /**
+     * Limits the number of instances that have an open connection and a running job q.  When
+     * another instance opens, the least recently used idle instance over the limit is evicted:
+     * its job q is stopped and its connection closed.  An evicted instance stays valid and
+     * transparently reopens the next time it is used.
+     * @param max maximum number of open instances, 0 (the default) for no limit
+     */
+    public static void setMaxOpen(int max) {
+        synchronized (s_open) {
+            s_maxOpen = max;
+            evict(null);
+        }
+    }
+
+    /**
+     * Evicts instances that haven't been used for the specified number of milliseconds.
+     * @see SQLite setMaxOpen(int max)
+     * @param millis idle time before eviction, 0 (the default) to never evict idle instances
+     */
+    public static void setIdleTimeout(long millis) {
+        synchronized (s_open) {
+            s_idleTimeout = millis;
+            if (s_idleCheck != null) {
+                s_idleCheck.cancel(false);
+                s_idleCheck = null;
+            }
+            if (millis > 0) {
+                long period = Math.max(millis / 2, 100);
+                s_idleCheck = scheduler().scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        evictIdle();
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Number of instances that currently have an open connection and a running job q.
+     * @return
+     */
+    public static int openCount() {
+        synchronized (s_open) {
+            return s_open.size();
+        }
+    }
+
+    /**
+     * Sends the slow query log of every instance to the listener instead of the
+     * java.util.logging Logger.
+     * @param listener the listener, or null to go back to logging
+     */
+    public static void setSlowQueryListener(SlowQueryListener listener) {
+        s_slowQueryListener = listener;
+    }
+
+    /**
+     * Returns the single daemon thread that runs background work for all instances.  Created
+     * the first time it's needed without taking a lock, so it can be called holding s_open.
+     */
+    static ScheduledExecutorService scheduler() {
+        return Background.SCHEDULER;
+    }
+
+    private static class Background {
+        // runs background work (idle eviction, etc) for all instances
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(daemon("SQLite-background"));
+
+        // runs maintenance rounds, which can take a long time, one at a time
+        static final ExecutorService MAINTENANCE = Executors.newSingleThreadExecutor(daemon("SQLite-maintenance"));
+
+        static ThreadFactory daemon(final String name) {
+            return new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+        }
+    }
+
+    /**
+     * Evicts least recently used idle instances until no more than s_maxOpen are open.  Must be
+     * called holding the s_open lock.
+     * @param keep an instance that must not be evicted (the one being opened), or null
+     */
+    private static void evict(SQLite keep) {
+        if (s_maxOpen <= 0 || s_open.size() <= s_maxOpen) {
+            return;
+        }
+        Iterator<SQLite> it = s_open.keySet().iterator();
+        while (s_open.size() > s_maxOpen && it.hasNext()) {
+            SQLite db = it.next();
+            if (db != keep && db._active == 0) {
+                it.remove();
+                db.evictQueue();
+            }
+        }
+    }
+
+    /**
+     * Starts a round of maintenance on each open instance that has a maintenance policy, has been
+     * idle long enough and hasn't been maintained within the policy's interval.  The rounds run
+     * on their own thread so a long ANALYZE doesn't hold up eviction and write-behind flushes.
+     */
+    private static void maintainIdle() {
+        List<SQLite> due = new ArrayList<SQLite>();
+        synchronized (s_open) {
+            long now = System.currentTimeMillis();
+            for (SQLite db : s_open.keySet()) {
+                Maintenance m = db.def.getMaintenance();
+                if (m != null && !db._maintaining && db._active == 0 && now - db._lastUsed >= m.getIdle() && now - db._lastMaintenance >= m.getInterval()) {
+                    db._maintaining = true;
+                    due.add(db);
+                }
+            }
+        }
+        for (final SQLite db : due) {
+            Background.MAINTENANCE.execute(new Runnable() {
+                public void run() {
+                    try {
+                        db.maintain(true);
+                    }
+                    catch (SQLiteException e) {
+                        s_log.warning(db.def.getName() + " maintenance failed: " + e.getMessage());
+                    }
+                    finally {
+                        synchronized (s_open) {
+                            db._maintaining = false;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static void evictIdle() {
+        synchronized (s_open) {
+            long now = System.currentTimeMillis();
+            Iterator<SQLite> it = s_open.keySet().iterator();
+            while (it.hasNext()) {
+                SQLite db = it.next();
+                if (db._active == 0 && now - db._lastUsed > s_idleTimeout) {
+                    it.remove();
+                    db.evictQueue();
+                }
+            }
+        }
     }
 
     /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
 
     private Def def;
     private File _dbFile = null;
-    private SQLiteQueue _q = null;
+    private JobQueue _q = null;
+
+    // pool bookkeeping, guarded by s_open
+    private int _active = 0;
+    private long _lastUsed = System.currentTimeMillis();
+    private boolean _evicted = false;
+
+    // set once db(..) has migrated this instance, guarded by this
+    private boolean _migrated = false;
+
+    // a background maintenance round is queued or running, guarded by s_open
+    private boolean _maintaining = false;
+
+    // when the Def's maintenance policy last completed a round
+    private volatile long _lastMaintenance = 0;
+
+    // samples the statements run by this instance, null unless an IndexAdvisor is attached
+    private volatile IndexAdvisor _advisor = null;
+
+    // other instances attached to this instance's connection, by alias
+    private final Map<String, SQLite> _attached = Collections.synchronizedMap(new LinkedHashMap<String, SQLite>());
+
+    // write-behind buffers by table, created the first time each is used
+    private final Map<String, WriteBuffer> _buffers = new HashMap<String, WriteBuffer>();
+
+    // milliseconds the connection waits for a lock held by another connection, 0 fails right away
+    private volatile long _busyTimeout = 0;
+
+    // EXPLAIN QUERY PLAN output by statement template, captured for the slow query log and advisor
+    @SuppressWarnings("serial")
+    private final Map<String, List<String>> _plans = Collections.synchronizedMap(new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_PLANS;
+        }
+    });
 
     /**
      * Construct an instance of SQLite for the specified database Def and File
@@ -159,609 +414,2999 @@ public class SQLite {
 
     public File file() { return _dbFile; }
 
+    /**
+     * Number of jobs waiting in the job q, not counting the one running.
+     * @return
+     */
+    public int pending() {
+        JobQueue q = _q;
+        return q == null || q.isStopped() ? 0 : q.pending();
+    }
+
     public void open() {
-    	if (_q != null && !_q.isStopped()) {
-    		return;
-    	}
-        this._q = new SQLiteQueue(this._dbFile);
-        this._q.start();
+        synchronized (s_open) {
+	    	if (_q != null && !_q.isStopped()) {
+	    		return;
+	    	}
+	        this._q = new JobQueue(this._dbFile);
+	        this._q.start();
+	        _evicted = false;
+	        _lastUsed = System.currentTimeMillis();
+	        s_open.put(this, Boolean.TRUE);
+	        evict(this);
+	        if (_busyTimeout > 0 || !_attached.isEmpty()) {
+	            // the first job on the new connection restores its busy timeout and attachments
+	            _q.execute(initJob());
+	        }
+	        if (def.getMaintenance() != null && s_maintenanceCheck == null) {
+	            s_maintenanceCheck = scheduler().scheduleWithFixedDelay(new Runnable() {
+	                public void run() {
+	                    maintainIdle();
+	                }
+	            }, MAINTENANCE_CHECK, MAINTENANCE_CHECK, TimeUnit.MILLISECONDS);
+	        }
+        }
+    }
+
+    /**
+     * Stops the job q to free its thread and connection, leaving this instance to reopen on
+     * its next job.  Must be called holding the s_open lock.
+     */
+    private void evictQueue() {
+        _evicted = true;
+        _q.stop(true);
+        s_log.fine("Evicted " + def.getName() + " " + _dbFile);
+    }
+
+    /**
+     * Marks this instance as in use, reopening it if it was evicted, so it won't be evicted
+     * until the matching release().
+     * @throws SQLiteException
+     */
+    private void acquire() throws SQLiteException {
+        synchronized (s_open) {
+            if (_q.isStopped()) {
+                if (!_evicted) {
+                	throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, this.def().getName() + " has been closed and the job q is stopped.");
+                }
+                open();
+            }
+            _active++;
+            _lastUsed = System.currentTimeMillis();
+            s_open.get(this);
+        }
+    }
+
+    private void release() {
+        synchronized (s_open) {
+            _active--;
+            _lastUsed = System.currentTimeMillis();
+        }
     }
     
     public int version() throws SQLiteException {
 
-    	try {
-	    	info().open();
-	        List<Record> list = info().query(new SQL("select version from versions where db_name = ?").set(1, def.getName()));
-	
-	        if (list != null && list.size() > 0) {
-	            return list.get(0).getInt("version");
-	        }
-	        else {
-	            info().execute(new Tx()
-	                    .add(new SQL("insert into versions (db_name, version) values (?, 0)").set(1, def.getName()))
-	            );
-	            return 0;
-	        }
-    	}
-    	finally {
-            info().close();
-    	}
+        synchronized (s_infoLock) {
+            try {
+                info().open();
+                List<Record> list = info().query(new SQL("select version from versions where db_name = ?").set(1, def.getName()));
+
+                if (list != null && list.size() > 0) {
+                    return list.get(0).getInt("version");
+                }
+                else {
+                    info().execute(new Tx()
+                            .add(new SQL("insert into versions (db_name, version) values (?, 0)").set(1, def.getName()))
+                    );
+                    return 0;
+                }
+            }
+            finally {
+                info().close();
+            }
+        }
     }
 
-    public void migrate() throws SQLiteException {
+    public synchronized void migrate() throws SQLiteException {
         int v = version();
         if (v < def.getSchemaUpdates().size()) {
-        	info().open();
             for (int i = v; i < def.getSchemaUpdates().size(); i++) {
                 execute(def.getSchemaUpdates().get(i));
-                info().execute(new SQL("update versions set version = ? where db_name = ?").set(1, i + 1).set(2, def.getName()));
+                synchronized (s_infoLock) {
+                    info().open();
+                    try {
+                        info().execute(new SQL("update versions set version = ? where db_name = ?").set(1, i + 1).set(2, def.getName()));
+                    }
+                    finally {
+                        info().close();
+                    }
+                }
             }
-            info().close();
+            // the schema changed, so cached query plans may be stale
+            _plans.clear();
         }
+        detectFullText();
     }
 
-    public List<Record> query(final SQL sql) throws SQLiteException {
-
-        if (!_dbFile.exists()) {
-            return new ArrayList<Record>();
-        }
-        if (_q.isStopped()) {
-        	throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, this.def().getName() + " has been closed and the job q is stopped.");
+    /**
+     * Looks up which module each of the Def's full-text indexes was created with, so searches
+     * use its syntax even if the native library has changed since.
+     */
+    private void detectFullText() throws SQLiteException {
+        for (FullText index : def.getFullTexts()) {
+            String sql = queryString(new SQL("select sql from sqlite_master where type = 'table' and name = ?").set(1, index.getName()));
+            if (sql != null) {
+                index.module = sql.toLowerCase().contains("using fts5") ? "fts5" : "fts4";
+            }
         }
-        return _q.execute(new SQLiteJob<List<Record>>() {
-        	protected List<Record> job(SQLiteConnection connection) throws SQLiteException {
-                List<Record> list = new ArrayList<Record>();
-                SQLiteStatement st = connection.prepare(sql.getSql());
-                try {
-	                while (st.step()) {
-	                    Record r = new Record();
-	                    for (int i = 0; i < st.columnCount(); i++) {
-	                        r.set(st.getColumnName(i), st.columnValue(i));
-	                    }
-	                    list.add(r);
-	                }
-                }
-                finally {
-                	st.dispose();
-                }
-                return list;
-        	}
-        }).complete();
-        
     }
 
-    public List<List<Record>> execute(final Tx tx) throws SQLiteException {
+    /**
+     * Migrates this instance the first time it's handed out by db(..).  Other callers for the
+     * same db wait here until the migration is done.
+     */
+    private synchronized void migrateOnce() throws SQLiteException {
+        if (!_migrated) {
+            migrate();
+            _migrated = true;
+        }
+    }
 
-        if (_q.isStopped()) {
-        	throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, this.def().getName() + " has been closed and the job q is stopped.");
+    /**
+     * Attaches the database of another instance to this instance's connection under the alias,
+     * so a single SQL run here can read (and join) tables of both as alias.table.  The other
+     * instance is migrated first if its schema is behind its Def.  Before each job this
+     * instance waits (within the job's timeout) for the jobs already queued in the same lane on
+     * the attached instances, so it sees their writes, and both connections wait on each other's locks instead of failing with
+     * SQLITE_BUSY.  Attachments survive eviction and reopening.
+     * @param alias
+     * @param other
+     * @throws SQLiteException
+     */
+    public void attach(final String alias, final SQLite other) throws SQLiteException {
+        if (!alias.matches("[A-Za-z_][A-Za-z0-9_]*") || alias.equalsIgnoreCase("main") || alias.equalsIgnoreCase("temp")) {
+            throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, "Invalid alias for an attached database: " + alias);
+        }
+        if (other == this) {
+            throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, def.getName() + " can't be attached to itself.");
         }
+        if (other.version() < other.def().getSchemaUpdates().size()) {
+            other.migrate();
+        }
+        other.setBusyTimeout(ATTACH_BUSY_TIMEOUT);
+        _busyTimeout = ATTACH_BUSY_TIMEOUT;
 
-        return _q.execute(new SQLiteJob<List<List<Record>>>() {
-        	protected List<List<Record>> job(SQLiteConnection connection) throws SQLiteException {
-    	
-		    	List<List<Record>> list = new ArrayList<List<Record>>();
-		        for (int i = 0; i < tx.size(); i++) {
-		            String sql = tx.get(i).getSql();
-//		            s_log.info(sql);
-		            if (sql.trim().toLowerCase().startsWith("select")) {
-		                List<Record> list2 = new ArrayList<Record>();
-		                SQLiteStatement st = connection.prepare(sql);
-		                try {
-			                while (st.step()) {
-			                    Record r = new Record();
-			                    for (int ii = 0; ii < st.columnCount(); ii++) {
-			                        r.set(st.getColumnName(ii), st.columnValue(ii));
-			                    }
-			                    list2.add(r);
-			                }
-			                list.add(list2);
-		                }
-		                finally {
-		                	st.dispose();
-		                }
-		            }
-		            else {
-		                connection.exec(sql);
-		            }
-		        }
-		        return list;
-		        
-        	}
-        }).complete();
+        complete(new Job<Void>(Priority.INTERACTIVE) {
+            protected Void job(SQLiteConnection connection) throws SQLiteException {
+                connection.setBusyTimeout(_busyTimeout);
+                connection.exec(attachSql(alias, other.file()));
+                return null;
+            }
+        }, 0);
+        _attached.put(alias, other);
     }
-    public List<Record> execute(final SQL st) throws SQLiteException {
 
-        if (_q.isStopped()) {
-        	throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, this.def().getName() + " has been closed and the job q is stopped.");
+    /**
+     * Detaches a database attached with attach(..).
+     * @param alias
+     * @throws SQLiteException
+     */
+    public void detach(final String alias) throws SQLiteException {
+        if (_attached.remove(alias) == null) {
+            return;
         }
+        complete(new Job<Void>(Priority.INTERACTIVE) {
+            protected Void job(SQLiteConnection connection) throws SQLiteException {
+                connection.exec("detach database " + alias);
+                return null;
+            }
+        }, 0);
+    }
 
-        return _q.execute(new SQLiteJob<List<Record>>() {
-        	protected List<Record> job(SQLiteConnection connection) throws SQLiteException {
-    	
-        		String sql = st.getSql();
-//        		s_log.info(sql);
+    /**
+     * Sets how long this instance's connection waits for a lock held by another connection.
+     */
+    private void setBusyTimeout(final long millis) throws SQLiteException {
+        _busyTimeout = millis;
+        complete(new Job<Void>(Priority.INTERACTIVE) {
+            protected Void job(SQLiteConnection connection) throws SQLiteException {
+                connection.setBusyTimeout(millis);
+                return null;
+            }
+        }, 0);
+    }
 
-        		List<Record> list2 = new ArrayList<Record>();
-	            if (sql.trim().toLowerCase().startsWith("select")) {
-	                SQLiteStatement st = connection.prepare(sql);
-	                try {
-		                while (st.step()) {
-		                    Record r = new Record();
-		                    for (int ii = 0; ii < st.columnCount(); ii++) {
-		                        r.set(st.getColumnName(ii), st.columnValue(ii));
-		                    }
-		                    list2.add(r);
-		                }
-	                }
-	                finally {
-	                	st.dispose();
-	                }
-	            }
-	            else {
-	                connection.exec(sql);
-	            }
+    /**
+     * Restores the busy timeout and attachments on a newly opened connection.
+     */
+    private Job<Void> initJob() {
+        return new Job<Void>(Priority.INTERACTIVE) {
+            protected Void job(SQLiteConnection connection) throws SQLiteException {
+                if (_busyTimeout > 0) {
+                    connection.setBusyTimeout(_busyTimeout);
+                }
+                synchronized (_attached) {
+                    for (Map.Entry<String, SQLite> e : _attached.entrySet()) {
+                        connection.exec(attachSql(e.getKey(), e.getValue().file()));
+                    }
+                }
+                return null;
+            }
+        };
+    }
 
-	            return list2;
+    private static String attachSql(String alias, File file) {
+        // not SQL.set(..), it escapes backslashes which would break Windows paths
+        return "attach database '" + file.getAbsolutePath().replace("'", "''") + "' as " + alias;
+    }
 
-        	}
-        }).complete();
-        	
-	}
+    /**
+     * Queues a no-op job on each attached instance, in the same lane as the job about to run
+     * here.  Once they've run, the jobs queued on the attached instances before them have too.
+     * @return the barriers to wait for
+     */
+    private List<Job<Void>> barriers(Priority priority) {
+        List<Job<Void>> barriers = new ArrayList<Job<Void>>();
+        if (_attached.isEmpty()) {
+            return barriers;
+        }
+        List<SQLite> others;
+        synchronized (_attached) {
+            others = new ArrayList<SQLite>(_attached.values());
+        }
+        for (SQLite other : others) {
+            JobQueue q = other._q;
+            if (q != null && !q.isStopped() && !q.isDatabaseThread()) {
+                Job<Void> barrier = new Job<Void>(priority) {
+                    protected Void job(SQLiteConnection connection) {
+                        return null;
+                    }
+                };
+                q.execute(barrier);
+                barriers.add(barrier);
+            }
+        }
+        return barriers;
+    }
+
+    public List<Record> query(final SQL sql) throws SQLiteException {
+        return query(sql, Priority.INTERACTIVE, def.getTimeout());
+    }
 
     /**
-     * Convenience method that executes an Insert Transaction and just returns the first  
-     * List of Records
-     * @param tx
+     * Runs the query, giving up after the specified number of milliseconds.  When the timeout
+     * expires the job is cancelled, the running statement is interrupted and a
+     * QueryTimeoutException is thrown.
+     * @param sql
+     * @param timeout milliseconds to wait for the result, 0 waits forever
      * @return
      * @throws SQLiteException
      */
-    public List<Record> insert(Insert tx) throws SQLiteException {
-        List<List<Record>> list  = execute(tx);
-        if (list.size() > 0) {
-            return list.get(0);
-        }
-        else {
-            return new ArrayList<Record>();
-        }
+    public List<Record> query(final SQL sql, long timeout) throws SQLiteException {
+        return query(sql, Priority.INTERACTIVE, timeout);
     }
 
     /**
-     * Convenience method that executes an Upsert Transaction and just returns the first  
-     * List of Records
-     * @param tx
+     * Runs the query in the specified lane of the job q.
+     * @param sql
+     * @param priority
      * @return
      * @throws SQLiteException
      */
-    public List<Record> upsert(Upsert tx) throws SQLiteException {
-        List<List<Record>> list  = execute(tx);
-        if (list.size() > 0) {
-            return list.get(0);
-        }
-        else {
+    public List<Record> query(final SQL sql, Priority priority) throws SQLiteException {
+        return query(sql, priority, def.getTimeout());
+    }
+
+    public List<Record> query(final SQL sql, Priority priority, long timeout) throws SQLiteException {
+
+        if (!_dbFile.exists()) {
             return new ArrayList<Record>();
         }
+        return complete(new Job<List<Record>>(priority) {
+        	protected List<Record> job(SQLiteConnection connection) throws SQLiteException {
+                return select(connection, sql, sql.getSql());
+        	}
+        }, timeout);
+        
     }
 
     /**
-     * Waits for all pending jobs to finish and then shuts down the job q.  
-     * @throws InterruptedException
+     * Returns the first column of the first row as a long, without building Records.
+     * @param sql
+     * @return the value, or null if there are no rows or the value is NULL
+     * @throws SQLiteException
      */
-    public void close()  {
-        if (_q.isStopped()) {
-        	return;
-        }
-    	try {
-			_q.stop(true).join();
-		} 
-    	catch (InterruptedException e) {
-    		s_log.severe(e.getMessage());
-		}
+    public Long queryLong(SQL sql) throws SQLiteException {
+        return queryLong(sql, Priority.INTERACTIVE, def.getTimeout());
     }
 
-    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+    /**
+     * @see SQLite query(SQL sql, long timeout)
+     */
+    public Long queryLong(SQL sql, long timeout) throws SQLiteException {
+        return queryLong(sql, Priority.INTERACTIVE, timeout);
+    }
 
-    public static class Record {
-        private Map<String, Object> _map = new HashMap<String, Object>();
-        private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S z");
+    /**
+     * @see SQLite query(SQL sql, Priority priority)
+     */
+    public Long queryLong(SQL sql, Priority priority) throws SQLiteException {
+        return queryLong(sql, priority, def.getTimeout());
+    }
+
+    public Long queryLong(SQL sql, Priority priority, long timeout) throws SQLiteException {
+        return read(sql, new Rows<Long>() {
+            Long read(SQLiteStatement st) throws SQLiteException {
+                if (!st.step()) {
+                    return null;
+                }
+                count(1);
+                return st.columnNull(0) ? null : st.columnLong(0);
+            }
+        }, priority, timeout);
+    }
+
+    /**
+     * @see SQLite queryLong(SQL sql)
+     */
+    public Double queryDouble(SQL sql) throws SQLiteException {
+        return queryDouble(sql, Priority.INTERACTIVE, def.getTimeout());
+    }
+
+    public Double queryDouble(SQL sql, long timeout) throws SQLiteException {
+        return queryDouble(sql, Priority.INTERACTIVE, timeout);
+    }
+
+    public Double queryDouble(SQL sql, Priority priority) throws SQLiteException {
+        return queryDouble(sql, priority, def.getTimeout());
+    }
+
+    public Double queryDouble(SQL sql, Priority priority, long timeout) throws SQLiteException {
+        return read(sql, new Rows<Double>() {
+            Double read(SQLiteStatement st) throws SQLiteException {
+                if (!st.step()) {
+                    return null;
+                }
+                count(1);
+                return st.columnNull(0) ? null : st.columnDouble(0);
+            }
+        }, priority, timeout);
+    }
+
+    /**
+     * @see SQLite queryLong(SQL sql)
+     */
+    public String queryString(SQL sql) throws SQLiteException {
+        return queryString(sql, Priority.INTERACTIVE, def.getTimeout());
+    }
+
+    public String queryString(SQL sql, long timeout) throws SQLiteException {
+        return queryString(sql, Priority.INTERACTIVE, timeout);
+    }
+
+    public String queryString(SQL sql, Priority priority) throws SQLiteException {
+        return queryString(sql, priority, def.getTimeout());
+    }
+
+    public String queryString(SQL sql, Priority priority, long timeout) throws SQLiteException {
+        return read(sql, new Rows<String>() {
+            String read(SQLiteStatement st) throws SQLiteException {
+                if (!st.step()) {
+                    return null;
+                }
+                count(1);
+                return st.columnString(0);
+            }
+        }, priority, timeout);
+    }
+
+    /**
+     * Returns the first column of every row as a long[], straight from the statement without
+     * building Records or boxing.  NULL values are returned as 0.
+     * @param sql
+     * @return
+     * @throws SQLiteException
+     */
+    public long[] queryLongs(SQL sql) throws SQLiteException {
+        return queryLongs(sql, Priority.INTERACTIVE, def.getTimeout());
+    }
+
+    public long[] queryLongs(SQL sql, long timeout) throws SQLiteException {
+        return queryLongs(sql, Priority.INTERACTIVE, timeout);
+    }
+
+    /**
+     * Reads the column in the specified lane, BULK for a large list that shouldn't hold up
+     * interactive queries.
+     */
+    public long[] queryLongs(SQL sql, Priority priority) throws SQLiteException {
+        return queryLongs(sql, priority, def.getTimeout());
+    }
+
+    public long[] queryLongs(SQL sql, Priority priority, long timeout) throws SQLiteException {
+        long[] values = read(sql, new Rows<long[]>() {
+            long[] read(SQLiteStatement st) throws SQLiteException {
+                long[] values = new long[64];
+                int n = 0;
+                while (st.step()) {
+                    if (n == values.length) {
+                        values = Arrays.copyOf(values, n * 2);
+                    }
+                    values[n++] = st.columnLong(0);
+                }
+                count(n);
+                return n == values.length ? values : Arrays.copyOf(values, n);
+            }
+        }, priority, timeout);
+        return values == null ? new long[0] : values;
+    }
+
+    /**
+     * @see SQLite queryLongs(SQL sql)
+     */
+    public double[] queryDoubles(SQL sql) throws SQLiteException {
+        return queryDoubles(sql, Priority.INTERACTIVE, def.getTimeout());
+    }
+
+    public double[] queryDoubles(SQL sql, long timeout) throws SQLiteException {
+        return queryDoubles(sql, Priority.INTERACTIVE, timeout);
+    }
+
+    public double[] queryDoubles(SQL sql, Priority priority) throws SQLiteException {
+        return queryDoubles(sql, priority, def.getTimeout());
+    }
+
+    public double[] queryDoubles(SQL sql, Priority priority, long timeout) throws SQLiteException {
+        double[] values = read(sql, new Rows<double[]>() {
+            double[] read(SQLiteStatement st) throws SQLiteException {
+                double[] values = new double[64];
+                int n = 0;
+                while (st.step()) {
+                    if (n == values.length) {
+                        values = Arrays.copyOf(values, n * 2);
+                    }
+                    values[n++] = st.columnDouble(0);
+                }
+                count(n);
+                return n == values.length ? values : Arrays.copyOf(values, n);
+            }
+        }, priority, timeout);
+        return values == null ? new double[0] : values;
+    }
+
+    /**
+     * Runs a query on the job q and hands its statement to the reader.
+     */
+    private <T> T read(final SQL sql, final Rows<T> reader, Priority priority, long timeout) throws SQLiteException {
+
+        if (!_dbFile.exists()) {
+            return null;
+        }
+        return complete(new Job<T>(priority) {
+            protected T job(SQLiteConnection connection) throws SQLiteException {
+                String text = sql.getSql();
+                long start = System.nanoTime();
+                SQLiteStatement st = connection.prepare(text);
+                long prepared = System.nanoTime();
+                T value;
+                try {
+                    value = reader.read(st);
+                }
+                finally {
+                    st.dispose();
+                }
+                observe(connection, sql, text, start, prepared, reader.rows);
+                return value;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Reads values out of a statement, counting the rows it read for the slow query log.
+     */
+    private static abstract class Rows<T> {
+        int rows = 0;
+
+        abstract T read(SQLiteStatement st) throws SQLiteException;
+
+        void count(int n) {
+            rows += n;
+        }
+    }
+
+    public List<List<Record>> execute(final Tx tx) throws SQLiteException {
+        return execute(tx, Priority.INTERACTIVE, def.getTimeout());
+    }
+
+    /**
+     * Executes the transaction, giving up after the specified number of milliseconds.  When the
+     * timeout expires the job is cancelled, the running statement is interrupted, the transaction
+     * is rolled back and a QueryTimeoutException is thrown.
+     * @param tx
+     * @param timeout milliseconds to wait for the result, 0 waits forever
+     * @return
+     * @throws SQLiteException
+     */
+    public List<List<Record>> execute(final Tx tx, long timeout) throws SQLiteException {
+        return execute(tx, Priority.INTERACTIVE, timeout);
+    }
+
+    /**
+     * Executes the transaction in the specified lane of the job q.  If the Tx has a chunk size
+     * it is committed one chunk at a time and the q is free to run other jobs between chunks.
+     * @param tx
+     * @param priority
+     * @return
+     * @throws SQLiteException
+     */
+    public List<List<Record>> execute(final Tx tx, Priority priority) throws SQLiteException {
+        return execute(tx, priority, def.getTimeout());
+    }
+
+    public List<List<Record>> execute(final Tx tx, Priority priority, long timeout) throws SQLiteException {
+
+        if (tx.getChunkSize() > 0) {
+            // each chunk is its own job, anything queued while a chunk runs gets its turn before the next one
+            // and the timeout covers all of them, each chunk gets what the ones before it left over
+            long deadline = System.currentTimeMillis() + timeout;
+            List<List<Record>> list = new ArrayList<List<Record>>();
+            List<Tx> chunks = tx.chunks();
+            for (int i = 0; i < chunks.size(); i++) {
+                long remaining = timeout <= 0 ? 0 : deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0) {
+                    throw new QueryTimeoutException(def.getName() + " chunked transaction did not complete within " + timeout + "ms, "
+                            + i + " of " + chunks.size() + " chunks were committed.");
+                }
+                try {
+                    list.addAll(complete(txJob(chunks.get(i), priority), remaining));
+                }
+                catch (QueryTimeoutException e) {
+                    throw e;
+                }
+                catch (SQLiteException e) {
+                    throw new SQLiteException(e.getErrorCode(), def.getName() + " chunk " + (i + 1) + " of " + chunks.size()
+                            + " failed and was rolled back, the " + i + " before it were committed: " + e.getMessage(), e);
+                }
+            }
+            return list;
+        }
+        return complete(txJob(tx, priority), timeout);
+    }
+
+    private Job<List<List<Record>>> txJob(final Tx tx, Priority priority) {
+        return new Job<List<List<Record>>>(priority) {
+        	protected List<List<Record>> job(SQLiteConnection connection) throws SQLiteException {
+    	
+		    	List<List<Record>> list = new ArrayList<List<Record>>();
+		    	try {
+			        for (int i = 0; i < tx.size(); i++) {
+			            SQL st = tx.get(i);
+			            String sql = st.getSql();
+			            if (sql.trim().toLowerCase().startsWith("select")) {
+			                list.add(select(connection, st, sql));
+			            }
+			            else {
+			                exec(connection, st, sql);
+			            }
+			        }
+		    	}
+		    	catch (SQLiteException e) {
+		    		rollback(connection);
+		    		throw e;
+		    	}
+		        return list;
+		        
+        	}
+        };
+    }
+
+    public List<Record> execute(final SQL st) throws SQLiteException {
+        return execute(st, Priority.INTERACTIVE, def.getTimeout());
+    }
+
+    /**
+     * Executes the statement, giving up after the specified number of milliseconds.  When the
+     * timeout expires the job is cancelled, the running statement is interrupted and a
+     * QueryTimeoutException is thrown.
+     * @param st
+     * @param timeout milliseconds to wait for the result, 0 waits forever
+     * @return
+     * @throws SQLiteException
+     */
+    public List<Record> execute(final SQL st, long timeout) throws SQLiteException {
+        return execute(st, Priority.INTERACTIVE, timeout);
+    }
+
+    /**
+     * Executes the statement in the specified lane of the job q.
+     * @param st
+     * @param priority
+     * @return
+     * @throws SQLiteException
+     */
+    public List<Record> execute(final SQL st, Priority priority) throws SQLiteException {
+        return execute(st, priority, def.getTimeout());
+    }
+
+    public List<Record> execute(final SQL st, Priority priority, long timeout) throws SQLiteException {
+
+        return complete(new Job<List<Record>>(priority) {
+        	protected List<Record> job(SQLiteConnection connection) throws SQLiteException {
+    	
+        		String sql = st.getSql();
+
+	            if (sql.trim().toLowerCase().startsWith("select")) {
+	                return select(connection, st, sql);
+	            }
+	            exec(connection, st, sql);
+	            return new ArrayList<Record>();
+
+        	}
+        }, timeout);
+        	
+	}
+
+    /**
+     * Runs a query on the connection and reads every row into a Record.  Called on the job q.
+     * @param connection
+     * @param sql the statement, for the slow query log
+     * @param text the statement's sql with its parameters filled in
+     * @return
+     * @throws SQLiteException
+     */
+    private List<Record> select(SQLiteConnection connection, SQL sql, String text) throws SQLiteException {
+        long start = System.nanoTime();
+        List<Record> list = new ArrayList<Record>();
+        SQLiteStatement st = connection.prepare(text);
+        long prepared = System.nanoTime();
+        try {
+            while (st.step()) {
+                Record r = new Record();
+                for (int i = 0; i < st.columnCount(); i++) {
+                    r.set(st.getColumnName(i), st.columnValue(i));
+                }
+                list.add(r);
+            }
+        }
+        finally {
+            st.dispose();
+        }
+        observe(connection, sql, text, start, prepared, list.size());
+        return list;
+    }
+
+    /**
+     * Executes a statement that doesn't return rows.  Called on the job q.
+     * @see SQLite select(SQLiteConnection connection, SQL sql, String text)
+     */
+    private void exec(SQLiteConnection connection, SQL sql, String text) throws SQLiteException {
+        long start = System.nanoTime();
+        connection.exec(text);
+        observe(connection, sql, text, start, start, -1);
+    }
+
+    /**
+     * Reports the statement to the index advisor (if there is one and the statement is picked by
+     * its sampling rate) and to the slow query log if it took longer than the Def's threshold
+     * and it is picked by the log's sampling rate.
+     * @param rows rows returned, or -1 to report the rows changed by the statement
+     */
+    private void observe(SQLiteConnection connection, SQL sql, String text, long start, long prepared, int rows) throws SQLiteException {
+        long end = System.nanoTime();
+
+        IndexAdvisor advisor = _advisor;
+        if (advisor != null && ThreadLocalRandom.current().nextDouble() < advisor.getSampling() && IndexAdvisor.isAdvisable(text)) {
+            String template = sql.getTemplate();
+            advisor.observe(template, (end - start) / 1000000.0, plan(connection, template, text));
+        }
+
+        long threshold = def.getSlowQueryThreshold();
+        if (threshold <= 0 || end - start < TimeUnit.MILLISECONDS.toNanos(threshold)) {
+            return;
+        }
+        double sampling = def.getSlowQuerySampling();
+        if (sampling < 1 && ThreadLocalRandom.current().nextDouble() >= sampling) {
+            return;
+        }
+        if (rows < 0) {
+            rows = connection.getChanges();
+        }
+
+        String template = sql.getTemplate();
+        SlowQuery slow = new SlowQuery(def.getName(), template, text,
+                (prepared - start) / 1000000.0, (end - prepared) / 1000000.0, rows, plan(connection, template, text));
+        SlowQueryListener listener = s_slowQueryListener;
+        if (listener != null) {
+            listener.slowQuery(slow);
+        }
+        else {
+            s_log.warning(slow.toString());
+        }
+    }
+
+    /**
+     * Returns the EXPLAIN QUERY PLAN output for the statement, capturing it the first time the
+     * template is seen and reusing it after that.
+     */
+    private List<String> plan(SQLiteConnection connection, String template, String text) {
+        List<String> plan = _plans.get(template);
+        if (plan == null) {
+            plan = explain(connection, text);
+            _plans.put(template, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the detail lines of EXPLAIN QUERY PLAN for the statement, or an empty list if it
+     * can't be explained.
+     */
+    private static List<String> explain(SQLiteConnection connection, String text) {
+        List<String> plan = new ArrayList<String>();
+        try {
+            SQLiteStatement st = connection.prepare("explain query plan " + text);
+            try {
+                int detail = st.columnCount() - 1;
+                for (int i = 0; i < st.columnCount(); i++) {
+                    if ("detail".equalsIgnoreCase(st.getColumnName(i))) {
+                        detail = i;
+                    }
+                }
+                while (st.step()) {
+                    plan.add(st.columnString(detail));
+                }
+            }
+            finally {
+                st.dispose();
+            }
+        }
+        catch (SQLiteException e) {
+            s_log.fine("Can't explain " + text + ": " + e.getMessage());
+        }
+        return plan;
+    }
+
+    /**
+     * Submits the job to the q and waits for it to complete.  If a timeout is specified and it
+     * expires first, the job is cancelled (interrupting the statement running on the connection
+     * so the q is freed) and a QueryTimeoutException is thrown.
+     * @param job
+     * @param timeout milliseconds to wait for the job, 0 waits forever
+     * @return
+     * @throws SQLiteException
+     */
+    private <T> T complete(SQLiteJob<T> job, long timeout) throws SQLiteException {
+        acquire();
+        try {
+            // the wait for the attached instances comes out of the same timeout
+            long deadline = System.currentTimeMillis() + timeout;
+            Priority priority = job instanceof Job ? ((Job<?>)job).priority() : Priority.INTERACTIVE;
+            for (Job<Void> barrier : barriers(priority)) {
+                await(barrier, remaining(timeout, deadline));
+            }
+            return complete(_q, job, remaining(timeout, deadline));
+        }
+        finally {
+            release();
+        }
+    }
+
+    private <T> T complete(JobQueue q, SQLiteJob<T> job, long timeout) throws SQLiteException {
+        q.execute(job);
+        return await(job, timeout);
+    }
+
+    /**
+     * Waits for a job that has been submitted, cancelling it if the timeout expires first.
+     * @see SQLite complete(SQLiteJob<T> job, long timeout)
+     */
+    private <T> T await(SQLiteJob<T> job, long timeout) throws SQLiteException {
+        try {
+            // get() rather than complete(), which swallows the job's exception and returns null
+            return timeout <= 0 ? job.get() : job.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (java.util.concurrent.TimeoutException e) {
+            job.cancel(true);
+            throw new QueryTimeoutException(def.getName() + " job did not complete within " + timeout + "ms and was cancelled.");
+        }
+        catch (InterruptedException e) {
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SQLiteException(SQLiteConstants.SQLITE_INTERRUPT, def.getName() + " job was interrupted and cancelled.");
+        }
+        catch (java.util.concurrent.CancellationException e) {
+            throw new SQLiteException(SQLiteConstants.SQLITE_INTERRUPT, def.getName() + " job was cancelled before it completed.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLiteException) {
+                throw (SQLiteException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, def.getName() + " job failed: " + cause, cause);
+        }
+    }
+
+    /**
+     * Milliseconds left before the deadline, or 0 (wait forever) if there is no timeout.
+     * @throws QueryTimeoutException if the deadline has passed
+     */
+    private long remaining(long timeout, long deadline) throws QueryTimeoutException {
+        if (timeout <= 0) {
+            return 0;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new QueryTimeoutException(def.getName() + " job did not complete within " + timeout + "ms.");
+        }
+        return remaining;
+    }
+
+    /**
+     * Rolls back the open transaction (if any) so a failed or interrupted job doesn't leave the
+     * connection stuck inside a transaction.
+     * @param connection
+     */
+    private static void rollback(SQLiteConnection connection) {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.exec("ROLLBACK");
+            }
+        }
+        catch (SQLiteException e) {
+            s_log.severe(e.getMessage());
+        }
+    }
+
+    /**
+     * Binds a value to a prepared statement parameter, converting Booleans and Dates to text the
+     * same way SQL.set(..) does.
+     */
+    private static void bind(SQLiteStatement st, int idx, Object value, SimpleDateFormat sdf) throws SQLiteException {
+        if (value == null) {
+            st.bindNull(idx);
+        }
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            st.bind(idx, ((Number)value).longValue());
+        }
+        else if (value instanceof Number) {
+            st.bind(idx, ((Number)value).doubleValue());
+        }
+        else if (value instanceof Boolean) {
+            st.bind(idx, ((Boolean)value) ? "true" : "false");
+        }
+        else if (value instanceof Date) {
+            st.bind(idx, sdf.format((Date)value));
+        }
+        else if (value instanceof byte[]) {
+            st.bind(idx, (byte[])value);
+        }
+        else {
+            st.bind(idx, value.toString());
+        }
+    }
+
+    /**
+     * The version of the native SQLite library, e.g. 3024000 for 3.24.0, or 0 if it can't be
+     * determined.
+     */
+    static int sqliteVersion() {
+        if (s_sqliteVersion < 0) {
+            try {
+                s_sqliteVersion = com.almworks.sqlite4java.SQLite.getSQLiteVersionNumber();
+            }
+            catch (Exception e) {
+                s_log.warning("Can't determine the SQLite version: " + e.getMessage());
+                s_sqliteVersion = 0;
+            }
+        }
+        return s_sqliteVersion;
+    }
+
+    /**
+     * True if the native SQLite library understands INSERT .. ON CONFLICT .. DO UPDATE (3.24.0+)
+     */
+    static boolean supportsOnConflict() {
+        return sqliteVersion() >= 3024000;
+    }
+
+    /**
+     * True if full-text indexes can use FTS5 (3.9.0+), otherwise they fall back to FTS4.
+     */
+    static boolean supportsFts5() {
+        return sqliteVersion() >= 3009000;
+    }
+
+    /**
+     * Convenience method that executes an Insert Transaction and just returns the first  
+     * List of Records.  Inserts into a write-behind table are buffered instead and return an
+     * empty List.
+     * @param tx
+     * @return
+     * @throws SQLiteException
+     */
+    public List<Record> insert(Insert tx) throws SQLiteException {
+        WriteBuffer buffer = buffer(tx.table);
+        if (buffer != null) {
+            buffer.add(tx);
+            return new ArrayList<Record>();
+        }
+        List<List<Record>> list  = execute(tx);
+        if (list.size() > 0) {
+            return list.get(0);
+        }
+        else {
+            return new ArrayList<Record>();
+        }
+    }
+
+    /**
+     * Convenience method that executes an Upsert Transaction and just returns the first  
+     * List of Records.  Upserts into a write-behind table are buffered instead and return an
+     * empty List.
+     * @param tx
+     * @return
+     * @throws SQLiteException
+     */
+    public List<Record> upsert(Upsert tx) throws SQLiteException {
+        WriteBuffer buffer = buffer(tx.table);
+        if (buffer != null) {
+            buffer.add(tx);
+            return new ArrayList<Record>();
+        }
+        List<List<Record>> list  = execute(tx);
+        if (list.size() > 0) {
+            return list.get(0);
+        }
+        else {
+            return new ArrayList<Record>();
+        }
+    }
+
+    /**
+     * Upserts all the rows of the batch in one transaction using one prepared statement.
+     * @param batch
+     * @return the number of rows upserted
+     * @throws SQLiteException
+     */
+    public int upsert(UpsertBatch batch) throws SQLiteException {
+        return upsert(batch, Priority.INTERACTIVE);
+    }
+
+    public int upsert(final UpsertBatch batch, Priority priority) throws SQLiteException {
+
+        Integer count = complete(new Job<Integer>(priority) {
+            protected Integer job(SQLiteConnection connection) throws SQLiteException {
+
+                List<Upsert.Statement> statements = batch.statements();
+                Map<String, Integer> positions = batch.positions();
+                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S z");
+
+                List<SQLiteStatement> prepared = new ArrayList<SQLiteStatement>();
+                try {
+                    connection.exec("BEGIN");
+                    for (Upsert.Statement st : statements) {
+                        prepared.add(connection.prepare(st.sql));
+                    }
+                    for (Object[] row : batch.rows()) {
+                        for (int i = 0; i < statements.size(); i++) {
+                            SQLiteStatement st = prepared.get(i);
+                            List<String> params = statements.get(i).params;
+                            for (int p = 0; p < params.size(); p++) {
+                                bind(st, p + 1, row[positions.get(params.get(p))], sdf);
+                            }
+                            st.stepThrough();
+                            st.reset(true);
+                        }
+                    }
+                    connection.exec("COMMIT");
+                }
+                catch (SQLiteException e) {
+                    rollback(connection);
+                    throw e;
+                }
+                finally {
+                    for (SQLiteStatement st : prepared) {
+                        st.dispose();
+                    }
+                }
+                return batch.size();
+            }
+        }, def.getTimeout());
+
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns up to limit captured changes with a sequence number greater than since, oldest
+     * first.
+     * @see Def capture(int version, String table, String keyColumn)
+     * @param since the last sequence number already processed, 0 to start at the beginning
+     * @param limit
+     * @return
+     * @throws SQLiteException
+     */
+    public List<Change> changes(long since, int limit) throws SQLiteException {
+        List<Change> list = new ArrayList<Change>();
+        for (Record r : query(new SQL("select seq, table_name, op, row_key, changed_at from " + CHANGE_LOG + " where seq > ? order by seq limit ?").set(1, since).set(2, limit))) {
+            list.add(new Change(r.getLong("seq"), r.getString("table_name"), r.getString("op"), r.getRecord().get("row_key"), r.getString("changed_at")));
+        }
+        return list;
+    }
+
+    /**
+     * Returns a feed that reads the captured changes after since, a page at a time.
+     * @param since the last sequence number already processed, 0 to start at the beginning
+     * @param pageSize
+     * @return
+     */
+    public ChangeFeed feed(long since, int pageSize) {
+        return new ChangeFeed(this, since, pageSize);
+    }
+
+    /**
+     * Prunes the captured changes up to and including seq from the change log.
+     * @param seq the last sequence number processed
+     * @throws SQLiteException
+     */
+    public void acknowledge(long seq) throws SQLiteException {
+        execute(new SQL("delete from " + CHANGE_LOG + " where seq <= ?").set(1, seq), Priority.BULK);
+    }
+
+    /**
+     * Runs the Def's maintenance policy now: checkpoints the WAL, refreshes the query planner
+     * statistics and reclaims free pages as configured.
+     * @return a description of each step that did something
+     * @throws SQLiteException
+     */
+    public List<String> maintain() throws SQLiteException {
+        return maintain(false);
+    }
+
+    /**
+     * Runs each maintenance step as its own BULK job.  In the background, a step only starts if
+     * nothing else is using this instance, otherwise the round stops and is retried later.
+     * @param background true when run by the scheduler rather than a caller
+     * @return a description of each step that did something, or null if the round yielded
+     * @throws SQLiteException
+     */
+    private List<String> maintain(boolean background) throws SQLiteException {
+        List<String> done = new ArrayList<String>();
+        final Maintenance m = def.getMaintenance();
+        if (m == null) {
+            return done;
+        }
+
+        List<Job<String>> steps = new ArrayList<Job<String>>();
+        if (m.getCheckpointPages() > 0) {
+            steps.add(new Job<String>(Priority.BULK) {
+                protected String job(SQLiteConnection connection) throws SQLiteException {
+                    if (!"wal".equalsIgnoreCase(pragma(connection, "pragma journal_mode"))) {
+                        return null;
+                    }
+                    long pages = new File(_dbFile.getPath() + "-wal").length() / Long.parseLong(pragma(connection, "pragma page_size"));
+                    if (pages < m.getCheckpointPages()) {
+                        return null;
+                    }
+                    // TRUNCATE (3.8.8+) also shrinks the WAL file back down
+                    connection.exec("pragma wal_checkpoint(" + (sqliteVersion() >= 3008008 ? "TRUNCATE" : "PASSIVE") + ")");
+                    return "checkpointed " + pages + " WAL pages";
+                }
+            });
+        }
+        if (m.isOptimize()) {
+            steps.add(new Job<String>(Priority.BULK) {
+                protected String job(SQLiteConnection connection) throws SQLiteException {
+                    // fresh statistics can change query plans
+                    _plans.clear();
+                    // PRAGMA optimize (3.18+) only analyzes tables whose statistics look stale
+                    if (sqliteVersion() >= 3018000) {
+                        connection.exec("pragma optimize");
+                        return "optimized";
+                    }
+                    connection.exec("analyze");
+                    return "analyzed";
+                }
+            });
+        }
+        if (m.getVacuumPages() > 0) {
+            steps.add(new Job<String>(Priority.BULK) {
+                protected String job(SQLiteConnection connection) throws SQLiteException {
+                    // incremental_vacuum only works with auto_vacuum = INCREMENTAL (2)
+                    if (!"2".equals(pragma(connection, "pragma auto_vacuum"))) {
+                        return null;
+                    }
+                    long pages = Long.parseLong(pragma(connection, "pragma freelist_count"));
+                    if (pages < m.getVacuumPages()) {
+                        return null;
+                    }
+                    connection.exec("pragma incremental_vacuum");
+                    return "vacuumed " + pages + " free pages";
+                }
+            });
+        }
+
+        for (Job<String> step : steps) {
+            String result;
+            if (background) {
+                synchronized (s_open) {
+                    if (_q.isStopped() || _active > 0 || _q.pending() > 0) {
+                        s_log.fine(def.getName() + " maintenance yielded to other work");
+                        return null;
+                    }
+                    _active++;
+                }
+                try {
+                    result = complete(_q, step, 0);
+                }
+                finally {
+                    synchronized (s_open) {
+                        _active--;
+                    }
+                }
+            }
+            else {
+                result = complete(step, 0);
+            }
+            if (result != null) {
+                done.add(result);
+            }
+        }
+
+        _lastMaintenance = System.currentTimeMillis();
+        if (!done.isEmpty()) {
+            s_log.info(def.getName() + " maintenance: " + done);
+        }
+        return done;
+    }
+
+    /**
+     * Returns the first column of the first row of a pragma (or any query) as a String.
+     */
+    private static String pragma(SQLiteConnection connection, String sql) throws SQLiteException {
+        SQLiteStatement st = connection.prepare(sql);
+        try {
+            return st.step() ? st.columnString(0) : null;
+        }
+        finally {
+            st.dispose();
+        }
+    }
+
+    /**
+     * Returns the write-behind buffer for the table, or null if the Def doesn't declare the
+     * table write-behind.
+     * @see Def writeBehind(String table, WriteBehind policy)
+     * @param table
+     * @return
+     */
+    public WriteBuffer buffer(String table) {
+        WriteBehind policy = def.getWriteBehind(table);
+        if (policy == null) {
+            return null;
+        }
+        synchronized (_buffers) {
+            WriteBuffer buffer = _buffers.get(table);
+            if (buffer == null) {
+                buffer = new WriteBuffer(this, table, policy);
+                _buffers.put(table, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Writes everything in the write-behind buffers and waits for it to commit.
+     * @throws SQLiteException
+     */
+    public void flush() throws SQLiteException {
+        List<WriteBuffer> buffers;
+        synchronized (_buffers) {
+            buffers = new ArrayList<WriteBuffer>(_buffers.values());
+        }
+        for (WriteBuffer buffer : buffers) {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * Drains the buffer into BULK jobs of up to the policy's batch size, each committing its
+     * statements as one transaction.  Jobs are submitted in the order the statements were
+     * buffered.
+     * @param buffer
+     * @param wait true to wait for all of the buffer's batches to commit, including the ones a
+     * background flush already queued, false to return once they are queued
+     * @throws SQLiteException
+     */
+    private void flush(final WriteBuffer buffer, boolean wait) throws SQLiteException {
+        List<SQLiteJob<Integer>> jobs;
+        synchronized (buffer) {
+            while (true) {
+                final List<WriteBuffer.Entry> batch = buffer.drain();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                // stays acquired until the job finishes so the instance isn't evicted under it
+                try {
+                    acquire();
+                }
+                catch (SQLiteException e) {
+                    buffer.failed(batch, e);
+                    throw e;
+                }
+                Job<Integer> job = new Job<Integer>(Priority.BULK) {
+                    protected Integer job(SQLiteConnection connection) throws SQLiteException {
+                        try {
+                            connection.exec("BEGIN");
+                            int rows = 0;
+                            for (WriteBuffer.Entry e : batch) {
+                                exec(connection, e.sql, e.sql.getSql());
+                                rows += connection.getChanges();
+                            }
+                            connection.exec("COMMIT");
+                            buffer.flushed(batch, rows);
+                            return batch.size();
+                        }
+                        catch (SQLiteException e) {
+                            rollback(connection);
+                            buffer.failed(batch, e);
+                            throw e;
+                        }
+                        finally {
+                            buffer.inFlight.remove(this);
+                            release();
+                        }
+                    }
+                };
+                buffer.inFlight.add(job);
+                _q.execute(job);
+            }
+            // includes the batches a background flush drained before this one got the lock
+            jobs = new ArrayList<SQLiteJob<Integer>>(buffer.inFlight);
+        }
+        if (!wait) {
+            return;
+        }
+        for (SQLiteJob<Integer> job : jobs) {
+            try {
+                await(job, 0);
+            }
+            finally {
+                // a job cancelled before it ran never removes itself
+                if (job.isDone()) {
+                    buffer.inFlight.remove(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for all pending jobs to finish and then shuts down the job q.  
+     * @throws InterruptedException
+     */
+    public void close()  {
+        try {
+            flush();
+        }
+        catch (SQLiteException e) {
+            s_log.severe(def.getName() + " couldn't flush its write-behind buffers: " + e.getMessage());
+        }
+        synchronized (s_open) {
+            s_open.remove(this);
+            _evicted = false;
+        }
+        if (_q.isStopped()) {
+        	return;
+        }
+    	try {
+			_q.stop(true).join();
+		} 
+    	catch (InterruptedException e) {
+    		s_log.severe(e.getMessage());
+		}
+    }
+
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+
+    public static class Record {
+        private Map<String, Object> _map = new HashMap<String, Object>();
+        private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S z");
+
+        public Map<String, Object> getRecord() {
+            return _map;
+        }
+
+        public void set(String field, Object value) {
+            if (value instanceof Date) {
+                value = sdf.format((Date)value);
+            }
+            _map.put(field, value);
+        }
+
+        public Double getDouble(String field) {
+            Object value = _map.get(field);
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof Number) {
+                return ((Number)value).doubleValue();
+            }
+            return Double.valueOf(value.toString());
+        }
+        public Integer getInt(String field) {
+            Object value = _map.get(field);
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof Integer) {
+                return (Integer)value;
+            }
+            return Integer.valueOf(value.toString());
+        }
+        public Long getLong(String field) {
+            Object value = _map.get(field);
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof Integer || value instanceof Long) {
+                return ((Number)value).longValue();
+            }
+            return Long.valueOf(value.toString());
+        }
+        public String getString(String field) {
+            Object value = _map.get(field);
+            if (value == null) {
+                return null;
+            }
+            return value.toString();
+        }
+        public Date getDate(String field) throws ParseException {
+            String value = getString(field);
+            if (value == null) {
+                return null;
+            }
+            return sdf.parse(value);
+        }
+    }
+
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+
+    /** 
+     * The SqlStatement class allows parameterized sql statements to be assembled separately from a
+     * database connection. Parameters are specified as question marks ("?") in the sql statement.
+     * Parameters are then "set" by specifying a 1 based index and a value.
+     */
+    public static class SQL
+    {
+
+        private StringBuffer sql1 = new StringBuffer();
+        private Map<Integer, String> values = new HashMap<Integer, String>();
+        private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S z");
+
+        public SQL() {}
+        public SQL(String sql) {
+            sql1.append(sql);
+        }
+
+        public void chop(String d) {
+            if (sql1.length() > 0 && sql1.lastIndexOf(d) > 0) {
+                if (sql1.substring(sql1.lastIndexOf(d)).equals(d)) {
+                    sql1.delete(sql1.lastIndexOf(d), sql1.length());
+                }
+            }
+        }
+
+        /**
+         * The set method allows a parameter value to be specified.  The index starts at 1.
+         * @param idx
+         * @param obj
+         */
+        public SQL set(int idx, Object obj) {
+
+            if (obj == null) {
+                return this;
+            }
+
+            String value = obj.toString();
+            if (obj instanceof String) {
+                value = value.replaceAll("\\\\", "\\\\\\\\");
+                value = value.replaceAll("\\?", "\\<Q\\>");
+                value = value.replaceAll(Pattern.quote("'"), Matcher.quoteReplacement("''"));
+                value = "'" + value + "'";
+            }
+            else if (obj instanceof Date) {
+//                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+                value = "'" + sdf.format((Date)obj) + "'";
+            }
+            else if (obj instanceof Boolean) {
+                if ((Boolean)obj) {
+                    value = "'true'";
+                }
+                else {
+                    value = "'false'";
+                }
+            }
+            else if (obj instanceof SQL) {
+                SQL sql = (SQL)obj;
+                value = sql.getSql();
+            }
+
+            values.put(idx, value);
+
+            return this;
+
+        }
+
+        /**
+         * Returns the sql statement with parameters replaced with the set values.
+         * @return
+         */
+        public String getSql() {
+
+            StringBuffer sql2 = new StringBuffer(sql1);
+
+            int count = 0;
+            int p1 = -1;
+            int p2 = -1;
+            while ((p1 = sql2.indexOf("?", p2)) > -1 ) {
+                count++;
+                String value = values.get(count);
+                if (value == null) {
+                    value = "NULL";
+                }
+                sql2.replace(p1, p1 + 1, value);
+                p2 = p1 + 1;
+            }
+
+            String sql = sql2.toString();
+            sql = sql.replaceAll(Pattern.quote("<Q>"), Matcher.quoteReplacement("?"));
+
+            return sql;
+        }
+
+        /**
+         * Returns the sql statement without its parameter values, with any literal strings and
+         * numbers also replaced by "?" and whitespace collapsed, so statements that differ only
+         * by their values share a template.
+         * @return
+         */
+        public String getTemplate() {
+            String sql = sql1.toString();
+            sql = sql.replaceAll("'(?:[^']|'')*'", "?");
+            sql = sql.replaceAll("\\b\\d+(?:\\.\\d+)?\\b", "?");
+            sql = sql.replaceAll("\\s+", " ");
+            return sql.trim();
+        }
+
+        /**
+         * Used to build the sql statement.  Appends the specified string to the current statement.
+         * @param s
+         * @return
+         */
+        public SQL append(String s) {
+            sql1.append(s);
+            return this;
+        }
+
+        /**
+         * Resets the parameters.
+         */
+        public SQL reset() {
+            this.values.clear();
+            return this;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.getSql();
+        }
+
+
+    }
+
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+
+    public static class Tx {
+
+        private List<SQL> _stmts = new ArrayList<SQL>();
+        private int _chunkSize = 0;
+
+        public Tx add(SQL sql) {
+            _stmts.add(sql);
+            return this;
+        }
+
+        /**
+         * Commits the statements in chunks of the specified size instead of as one transaction,
+         * letting other jobs on the q run between chunks.  Each chunk is atomic, the Tx as a
+         * whole is not.
+         * @param size number of statements per chunk, 0 (the default) executes the Tx as one unit
+         * @return
+         */
+        public Tx chunk(int size) {
+            _chunkSize = size;
+            return this;
+        }
+
+        public int getChunkSize() {
+            return _chunkSize;
+        }
+
+        /**
+         * Splits this Tx into separate transactions of at most getChunkSize() statements.
+         * @return
+         */
+        public List<Tx> chunks() {
+            List<Tx> list = new ArrayList<Tx>();
+            if (_chunkSize <= 0) {
+                list.add(this);
+                return list;
+            }
+            for (int i = 0; i < _stmts.size(); i += _chunkSize) {
+                Tx tx = new Tx();
+                tx._stmts.addAll(_stmts.subList(i, Math.min(i + _chunkSize, _stmts.size())));
+                list.add(tx);
+            }
+            return list;
+        }
+
+        public int size() {
+            return _stmts.size() + 2;
+        }
+
+        public SQL get(int i) {
+            if (i == 0) {
+                return new SQL("BEGIN");
+            }
+            else if (i == (size() - 1)) {
+                return new SQL("COMMIT");
+            }
+            else {
+                return _stmts.get(i - 1);
+            }
+        }
+    }
+
+    public static class Insert extends Tx {
+        private final String NEXT_VAL = "net.glasmann.base.SQLite.nextValue";
+        private String table;
+        private Map<String, Object> fields = new HashMap<String, Object>();
+
+        public Insert(String table) {
+            this.table = table;
+        }
+
+        public Insert field(String name, Object value) { fields.put(name, value); return this;}
+        public Insert field(String name) { fields.put(name, NEXT_VAL); return this;}
+
+        public Insert build() {
+
+            // build the insert statement
+            SQL sql1 = new SQL();
+            sql1.append("insert into ");
+            sql1.append(table).append(" ");
+            sql1.append("(");
+            for (String name : fields.keySet()) {
+                sql1.append(name);
+                sql1.append(",");
+            }
+            sql1.chop(",");
+            sql1.append(") values (");
+            for (String name : fields.keySet()) {
+                sql1.append("?");
+                sql1.append(",");
+            }
+            sql1.chop(",");
+            sql1.append(")");
+            int c = 0;
+            for (String name : fields.keySet()) {
+                c++;
+                Object value = fields.get(name);
+                // Gregg - Check that value is not null before testing if
+                // it is the NEXT_VAL class. 12/10/2015
+                if (null != value && NEXT_VAL.equals(value.toString())) {
+                    value = new SQL("(select max(" + name + ") from " + table + ") + 1");
+                }
+                sql1.set(c, value);
+            }
+            add(sql1);
+
+            // build the select statement
+            SQL sql2 = new SQL("select * from " + table + " where ROWID = last_insert_rowid();");
+            add(sql2);
+
+            return this;
+        }
+    }
+
+    public static class Upsert extends Tx {
+
+        private String table;
+        private Map<String, Object> keys = new LinkedHashMap<String, Object>();
+        private Map<String, Object> insertFields = new LinkedHashMap<String, Object>();
+        private Map<String, Object> updateFields = new LinkedHashMap<String, Object>();
+
+        public Upsert(String table) {
+            this.table = table;
+        }
+
+        public Upsert field(String name, Object value) {
+            return field(name, value, false);
+        }
+        public Upsert field(String name, Object value, boolean onlyOnInsert) {
+            if (onlyOnInsert) {
+                insertFields.put(name, value);
+            }
+            else {
+                insertFields.put(name, value);
+                updateFields.put(name, value);
+            }
+            return this;
+        }
+
+        public Upsert key(String name, Object value) {
+            keys.put(name, value);
+            return this;
+        }
+
+        public Upsert build() {
+
+            // the statements only reference columns by name, pull the values for each parameter
+            // from the keys and fields
+            Map<String, Object> values = new HashMap<String, Object>(insertFields);
+            values.putAll(keys);
+
+            for (Statement st : statements(table, keys.keySet(), insertFields.keySet(), updateFields.keySet())) {
+                SQL sql = new SQL(st.sql);
+                int c = 0;
+                for (String name : st.params) {
+                    c++;
+                    sql.set(c, values.get(name));
+                }
+                add(sql);
+            }
+
+            // build the select statement
+            if (keys.isEmpty()) {
+                add(new SQL("select * from " + table + " where ROWID = last_insert_rowid();"));
+            }
+            else {
+                SQL sql = new SQL("select * from " + table + " where " + where(keys.keySet()));
+                int c = 0;
+                for (String name : keys.keySet()) {
+                    c++;
+                    sql.set(c, keys.get(name));
+                }
+                add(sql);
+            }
+
+            return this;
+        }
+
+        /**
+         * Returns the statements that perform the upsert, with a "?" for each parameter.  With
+         * SQLite 3.24 or later this is a single INSERT .. ON CONFLICT (keys) DO UPDATE.  Older
+         * versions get an UPDATE followed by an INSERT of the row if it doesn't exist.  Either way
+         * an existing row is updated in place, only the update fields are written and the rowid
+         * doesn't change.
+         */
+        static List<Statement> statements(String table, Collection<String> keys, Collection<String> insertFields, Collection<String> updateFields) {
+
+            List<String> columns = new ArrayList<String>(keys);
+            for (String name : insertFields) {
+                if (!columns.contains(name)) {
+                    columns.add(name);
+                }
+            }
+            List<String> updates = new ArrayList<String>();
+            for (String name : updateFields) {
+                if (!keys.contains(name)) {
+                    updates.add(name);
+                }
+            }
+
+            List<Statement> list = new ArrayList<Statement>();
+
+            if (keys.isEmpty()) {
+                list.add(new Statement("insert into " + table + " (" + join(columns) + ") values (" + marks(columns.size()) + ")", columns));
+            }
+            else if (supportsOnConflict()) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("insert into ").append(table).append(" (").append(join(columns)).append(") ");
+                sb.append("values (").append(marks(columns.size())).append(") ");
+                sb.append("on conflict (").append(join(keys)).append(") ");
+                if (updates.isEmpty()) {
+                    sb.append("do nothing");
+                }
+                else {
+                    sb.append("do update set ");
+                    for (String name : updates) {
+                        sb.append(name).append(" = excluded.").append(name).append(",");
+                    }
+                    sb.setLength(sb.length() - 1);
+                }
+                list.add(new Statement(sb.toString(), columns));
+            }
+            else {
+                if (!updates.isEmpty()) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("update ").append(table).append(" set ");
+                    for (String name : updates) {
+                        sb.append(name).append(" = ?,");
+                    }
+                    sb.setLength(sb.length() - 1);
+                    sb.append(" where ").append(where(keys));
+                    List<String> params = new ArrayList<String>(updates);
+                    params.addAll(keys);
+                    list.add(new Statement(sb.toString(), params));
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append("insert into ").append(table).append(" (").append(join(columns)).append(") ");
+                sb.append("select ").append(marks(columns.size())).append(" ");
+                sb.append("where not exists (select 1 from ").append(table).append(" where ").append(where(keys)).append(")");
+                List<String> params = new ArrayList<String>(columns);
+                params.addAll(keys);
+                list.add(new Statement(sb.toString(), params));
+            }
+
+            return list;
+        }
+
+        private static String join(Collection<String> names) {
+            StringBuilder sb = new StringBuilder();
+            for (String name : names) {
+                sb.append(name).append(",");
+            }
+            sb.setLength(Math.max(0, sb.length() - 1));
+            return sb.toString();
+        }
+
+        private static String marks(int n) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                sb.append(i == 0 ? "?" : ",?");
+            }
+            return sb.toString();
+        }
+
+        private static String where(Collection<String> keys) {
+            StringBuilder sb = new StringBuilder();
+            for (String name : keys) {
+                sb.append(name).append(" = ? and ");
+            }
+            sb.setLength(Math.max(0, sb.length() - 5));
+            return sb.toString();
+        }
+
+        /**
+         * A statement with a "?" for each parameter and the names of the columns that supply
+         * the parameter values, in order.
+         */
+        static class Statement {
+            final String sql;
+            final List<String> params;
+
+            Statement(String sql, List<String> params) {
+                this.sql = sql;
+                this.params = params;
+            }
+        }
+    }
+
+    /**
+     * Upserts many rows in a single transaction.  Unlike Upsert, which inlines its values into
+     * the SQL, UpsertBatch prepares its statements once and binds each row to them, and it
+     * doesn't select the affected rows back.  Declare the keys and fields, then add one row of
+     * values per record with the keys first followed by the fields, in the order they were
+     * declared.
+     */
+    public static class UpsertBatch {
+
+        private String table;
+        private List<String> keys = new ArrayList<String>();
+        private List<String> insertFields = new ArrayList<String>();
+        private List<String> updateFields = new ArrayList<String>();
+        private List<Object[]> rows = new ArrayList<Object[]>();
+
+        public UpsertBatch(String table) {
+            this.table = table;
+        }
+
+        public UpsertBatch key(String name) {
+            keys.add(name);
+            return this;
+        }
+
+        public UpsertBatch field(String name) {
+            return field(name, false);
+        }
+        public UpsertBatch field(String name, boolean onlyOnInsert) {
+            insertFields.add(name);
+            if (!onlyOnInsert) {
+                updateFields.add(name);
+            }
+            return this;
+        }
+
+        public UpsertBatch row(Object... values) {
+            if (values.length != keys.size() + insertFields.size()) {
+                throw new IllegalArgumentException("Expected " + (keys.size() + insertFields.size()) + " values for " + table + " but got " + values.length);
+            }
+            rows.add(values);
+            return this;
+        }
+
+        public int size() {
+            return rows.size();
+        }
+
+        List<Upsert.Statement> statements() {
+            return Upsert.statements(table, keys, insertFields, updateFields);
+        }
+
+        /**
+         * Maps each column to its position in a row.
+         */
+        Map<String, Integer> positions() {
+            Map<String, Integer> map = new HashMap<String, Integer>();
+            int c = 0;
+            for (String name : keys) {
+                map.put(name, c++);
+            }
+            for (String name : insertFields) {
+                map.put(name, c++);
+            }
+            return map;
+        }
+
+        List<Object[]> rows() {
+            return rows;
+        }
+    }
+
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+
+    /**
+     * Describes a full-text index for Def.fullText(..).  With content(..) the index is an
+     * external content table over an ordinary table: only the index is stored in the full-text
+     * table and the text stays in the content table.  Uses FTS5 on SQLite 3.9.0 or later and
+     * falls back to FTS4 (external content needs 3.7.9) on older libraries.
+     */
+    public static class FullText {
+        private String name;
+        private String content;
+        private String contentRowid;
+        private String tokenize;
+        private List<String> columns = new ArrayList<String>();
+        // fts5 or fts4, as found in the database by SQLite.migrate()
+        private volatile String module;
+
+        public FullText(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Indexes the columns of an existing table.
+         * @param table the content table
+         * @param rowidColumn the content table's integer primary key (or "rowid")
+         * @return
+         */
+        public FullText content(String table, String rowidColumn) {
+            this.content = table;
+            this.contentRowid = rowidColumn;
+            return this;
+        }
+        public FullText column(String name) { columns.add(name); return this; }
+        public FullText tokenize(String tokenizer) { this.tokenize = tokenizer; return this; }
+
+        public String getName() { return name; }
+        public String getContent() { return content; }
+        public String getContentRowid() { return contentRowid; }
+        public List<String> getColumns() { return columns; }
+
+        /**
+         * The module the index was created with, fts5 or fts4.  Until the database has been
+         * looked at, the one the native library would create.
+         */
+        public String getModule() {
+            String m = module;
+            return m != null ? m : supportsFts5() ? "fts5" : "fts4";
+        }
 
-        public Map<String, Object> getRecord() {
-            return _map;
+        boolean isFts5() {
+            return "fts5".equals(getModule());
         }
 
-        public void set(String field, Object value) {
-            if (value instanceof Date) {
-                value = sdf.format((Date)value);
+        /**
+         * Returns a Search of this index for the full-text query.
+         */
+        public Search search(String query) {
+            return new Search(this, query);
+        }
+
+        List<SQL> statements() {
+            List<SQL> list = new ArrayList<SQL>();
+            boolean fts5 = supportsFts5();
+
+            // IF NOT EXISTS on a virtual table needs 3.7.11
+            StringBuilder sb = new StringBuilder();
+            sb.append(sqliteVersion() >= 3007011 ? "create virtual table if not exists " : "create virtual table ");
+            sb.append(name).append(fts5 ? " using fts5(" : " using fts4(");
+            for (String column : columns) {
+                sb.append(column).append(", ");
             }
-            _map.put(field, value);
+            if (content != null) {
+                sb.append("content='").append(content).append("', ");
+                // FTS4 always uses the content table's rowid, which an integer primary key aliases
+                if (fts5) {
+                    sb.append("content_rowid='").append(contentRowid).append("', ");
+                }
+            }
+            if (tokenize != null) {
+                sb.append(fts5 ? "tokenize='" + tokenize.replace("'", "''") + "', " : "tokenize=" + tokenize + ", ");
+            }
+            sb.setLength(sb.length() - 2);
+            sb.append(")");
+            list.add(new SQL(sb.toString()));
+
+            if (content == null) {
+                return list;
+            }
+
+            // an external content index has to be told about every change to the content table,
+            // deletes need the old values to remove them from the index
+            if (!fts5) {
+                return fts4Triggers(list);
+            }
+            String cols = "";
+            String newValues = "";
+            String oldValues = "";
+            for (String column : columns) {
+                cols += ", " + column;
+                newValues += ", new." + column;
+                oldValues += ", old." + column;
+            }
+            String insert = "insert into " + name + " (rowid" + cols + ") values (new." + contentRowid + newValues + "); ";
+            String delete = "insert into " + name + " (" + name + ", rowid" + cols + ") values ('delete', old." + contentRowid + oldValues + "); ";
+            String trigger = "create trigger if not exists " + name + "_";
+
+            list.add(new SQL(trigger + "insert after insert on " + content + " begin " + insert + "end"));
+            list.add(new SQL(trigger + "delete after delete on " + content + " begin " + delete + "end"));
+            list.add(new SQL(trigger + "update after update on " + content + " begin " + delete + insert + "end"));
+
+            // index the rows that are already there
+            list.add(new SQL("insert into " + name + " (" + name + ") values ('rebuild')"));
+
+            return list;
         }
 
-        public Double getDouble(String field) {
-            Object value = _map.get(field);
-            if (value == null) {
-                return null;
+        /**
+         * FTS4 reads the old values out of the content table itself, so they have to be removed
+         * from the index before the content row changes.
+         */
+        private List<SQL> fts4Triggers(List<SQL> list) {
+            String cols = "";
+            String newValues = "";
+            for (String column : columns) {
+                cols += ", " + column;
+                newValues += ", new." + column;
             }
-            return Double.valueOf(value.toString());
+            String insert = "insert into " + name + " (docid" + cols + ") values (new.rowid" + newValues + "); ";
+            String delete = "delete from " + name + " where docid = old.rowid; ";
+            String trigger = "create trigger if not exists " + name + "_";
+
+            list.add(new SQL(trigger + "insert after insert on " + content + " begin " + insert + "end"));
+            list.add(new SQL(trigger + "delete before delete on " + content + " begin " + delete + "end"));
+            list.add(new SQL(trigger + "update_old before update on " + content + " begin " + delete + "end"));
+            list.add(new SQL(trigger + "update after update on " + content + " begin " + insert + "end"));
+
+            list.add(new SQL("insert into " + name + " (" + name + ") values ('rebuild')"));
+
+            return list;
         }
-        public Integer getInt(String field) {
-            Object value = _map.get(field);
-            if (value == null) {
-                return null;
+    }
+
+    /**
+     * Builds a ranked full-text search of a FullText index.  Results are ordered best match
+     * first with the rank in a search_rank column (lower is better), plus a column for each
+     * highlight(..) or snippet(..).  With a content table each result also has all of the content
+     * row's columns.  FTS4 has no bm25 rank, there search_rank is minus the number of matched
+     * terms and highlight(..) is a snippet of up to 64 tokens.
+     */
+    public static class Search extends SQL {
+        private FullText index;
+        private String query;
+        private List<String> functions = new ArrayList<String>();
+        private List<Object> params = new ArrayList<Object>();
+        private int offset = 0;
+        private int limit = 20;
+
+        Search(FullText index, String query) {
+            this.index = index;
+            this.query = query;
+        }
+
+        /**
+         * Adds a column_highlight column with the whole value of the column and each matched
+         * term wrapped in open and close.
+         */
+        public Search highlight(String column, String open, String close) {
+            if (index.isFts5()) {
+                functions.add("highlight(" + index.getName() + ", " + index.getColumns().indexOf(column) + ", ?, ?) as " + column + "_highlight");
+                params.add(open);
+                params.add(close);
+                return this;
             }
-            return Integer.valueOf(value.toString());
+            functions.add("snippet(" + index.getName() + ", ?, ?, ?, " + index.getColumns().indexOf(column) + ", 64) as " + column + "_highlight");
+            params.add(open);
+            params.add(close);
+            params.add("");
+            return this;
         }
-        public Long getLong(String field) {
-            Object value = _map.get(field);
-            if (value == null) {
-                return null;
+
+        /**
+         * Adds a column_snippet column with a fragment of up to tokens tokens around the matched
+         * terms, wrapped in open and close.
+         */
+        public Search snippet(String column, String open, String close, String ellipsis, int tokens) {
+            // FTS4 takes the column after the markers and at most 64 tokens
+            functions.add(index.isFts5()
+                ? "snippet(" + index.getName() + ", " + index.getColumns().indexOf(column) + ", ?, ?, ?, " + tokens + ") as " + column + "_snippet"
+                : "snippet(" + index.getName() + ", ?, ?, ?, " + index.getColumns().indexOf(column) + ", " + Math.min(tokens, 64) + ") as " + column + "_snippet");
+            params.add(open);
+            params.add(close);
+            params.add(ellipsis);
+            return this;
+        }
+
+        public Search page(int offset, int limit) {
+            this.offset = offset;
+            this.limit = limit;
+            return this;
+        }
+
+        public Search build() {
+            String fts = index.getName();
+            // offsets() lists 4 numbers per matched term
+            String rank = index.isFts5() ? fts + ".rank"
+                : "-(length(offsets(" + fts + ")) - length(replace(offsets(" + fts + "), ' ', '')) + 1) / 4";
+
+            append("select ");
+            append(index.getContent() != null ? "c.*, " : fts + ".*, ");
+            append(rank + " as search_rank");
+            for (String function : functions) {
+                append(", " + function);
             }
-            return Long.valueOf(value.toString());
+            append(" from " + fts);
+            if (index.getContent() != null) {
+                append(" join " + index.getContent() + " c on c." + index.getContentRowid() + " = " + fts + ".rowid");
+            }
+            append(" where " + fts + " match ? order by search_rank limit ? offset ?");
+
+            int c = 0;
+            for (Object param : params) {
+                set(++c, param);
+            }
+            set(++c, query);
+            set(++c, limit);
+            set(++c, offset);
+            return this;
         }
-        public String getString(String field) {
-            Object value = _map.get(field);
-            if (value == null) {
-                return null;
+
+        /**
+         * Returns a query for the total number of matches, as total.
+         */
+        public SQL count() {
+            return new SQL("select count(*) as total from " + index.getName() + " where " + index.getName() + " match ?").set(1, query);
+        }
+    }
+
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+
+    public static abstract class Def {
+        private String name;
+        private long timeout = 0;
+        private Maintenance maintenance = null;
+        private long slowQueryThreshold = 0;
+        private double slowQuerySampling = 1;
+        private List<Tx> schemaUpdates = new ArrayList<Tx>();
+        private Map<String, String> captured = new LinkedHashMap<String, String>();
+        private Map<String, FullText> fullTexts = new LinkedHashMap<String, FullText>();
+        private Map<String, WriteBehind> writeBehinds = new HashMap<String, WriteBehind>();
+
+        protected Def schema(int version, SQL st) {
+            if (schemaUpdates.size() < version) {
+                for (int i = schemaUpdates.size(); i < version; i++) {
+                    schemaUpdates.add(new Tx());
+                }
             }
-            return value.toString();
+            Tx tx = schemaUpdates.get(version - 1);
+            tx.add(st);
+            return this;
         }
-        public Date getDate(String field) throws ParseException {
-            String value = getString(field);
-            if (value == null) {
-                return null;
+
+        /**
+         * Starts capturing changes to the table as part of the specified schema version.  Adds the
+         * change log table (if it isn't there yet) and insert, update and delete triggers that log
+         * the key of every changed row.  Read the log with SQLite.changes(..) or SQLite.feed(..).
+         * @param version the schema version that adds the capture
+         * @param table
+         * @param keyColumn the column that identifies a row, usually the primary key
+         * @return
+         */
+        protected Def capture(int version, String table, String keyColumn) {
+            schema(version, new SQL()
+                .append("create table if not exists " + CHANGE_LOG + " ( ")
+                .append("seq integer primary key autoincrement, ")
+                .append("table_name text not null, ")
+                .append("op text not null, ")
+                .append("row_key, ")
+                .append("changed_at text not null default (strftime('%Y-%m-%d %H:%M:%f', 'now')) ")
+                .append(") ")
+            );
+            String log = "insert into " + CHANGE_LOG + " (table_name, op, row_key) ";
+            String trigger = "create trigger if not exists " + CHANGE_LOG + "_" + table + "_";
+            schema(version, new SQL()
+                .append(trigger + "insert after insert on " + table + " begin ")
+                .append(log + "values ('" + table + "', 'I', new." + keyColumn + "); ")
+                .append("end")
+            );
+            schema(version, new SQL()
+                .append(trigger + "update after update on " + table + " begin ")
+                // a change of key deletes the row under its old key
+                .append(log + "select '" + table + "', 'D', old." + keyColumn + " where old." + keyColumn + " is not new." + keyColumn + "; ")
+                .append(log + "values ('" + table + "', 'U', new." + keyColumn + "); ")
+                .append("end")
+            );
+            schema(version, new SQL()
+                .append(trigger + "delete after delete on " + table + " begin ")
+                .append(log + "values ('" + table + "', 'D', old." + keyColumn + "); ")
+                .append("end")
+            );
+            captured.put(table, keyColumn);
+            return this;
+        }
+
+        /**
+         * The tables whose changes are captured, mapped to their key columns.
+         */
+        public Map<String, String> getCaptured() {
+            return captured;
+        }
+
+        /**
+         * Adds an FTS5 full-text index as part of the specified schema version.  When the index
+         * has a content table, the triggers that keep it in sync are created and the rows already
+         * in the table are indexed.
+         * @param version the schema version that adds the index
+         * @param index
+         * @return
+         */
+        protected Def fullText(int version, FullText index) {
+            for (SQL st : index.statements()) {
+                schema(version, st);
             }
-            return sdf.parse(value);
+            fullTexts.put(index.getName(), index);
+            return this;
+        }
+
+        /**
+         * Returns the full-text index with the specified name, or null.
+         */
+        public FullText getFullText(String name) {
+            return fullTexts.get(name);
+        }
+
+        public Collection<FullText> getFullTexts() {
+            return fullTexts.values();
+        }
+
+        /**
+         * Makes the table write-behind: SQLite.insert(..) and SQLite.upsert(..) on the table go
+         * into a buffer and return right away, and the buffer is written in batches.  Buffered
+         * writes that haven't been flushed are lost if the process dies.
+         * @see SQLite buffer(String table)
+         * @param table
+         * @param policy
+         * @return
+         */
+        protected Def writeBehind(String table, WriteBehind policy) {
+            writeBehinds.put(table, policy);
+            return this;
+        }
+
+        /**
+         * Returns the write-behind policy for the table, or null if writes to it aren't buffered.
+         */
+        public WriteBehind getWriteBehind(String table) {
+            return writeBehinds.get(table);
+        }
+
+        public List<Tx> getSchemaUpdates() {
+            return schemaUpdates;
+        }
+        public String getName() {
+            return name;
+        }
+        protected void setName(String name) {
+            this.name = name;
+        }
+        /**
+         * Default number of milliseconds query(..) and execute(..) wait for a job before
+         * cancelling it, 0 (the default) waits forever.
+         */
+        public long getTimeout() {
+            return timeout;
+        }
+        protected void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+        /**
+         * The policy for background maintenance of this database, or null (the default) for none.
+         */
+        public Maintenance getMaintenance() {
+            return maintenance;
+        }
+        protected void setMaintenance(Maintenance maintenance) {
+            this.maintenance = maintenance;
+        }
+        /**
+         * Statements that take at least this many milliseconds are reported to the slow query
+         * log, 0 (the default) turns the log off.
+         */
+        public long getSlowQueryThreshold() {
+            return slowQueryThreshold;
+        }
+        protected void setSlowQueryThreshold(long millis) {
+            this.slowQueryThreshold = millis;
+        }
+        /**
+         * Fraction (0 to 1) of slow statements that are actually reported, 1 (the default)
+         * reports all of them.
+         */
+        public double getSlowQuerySampling() {
+            return slowQuerySampling;
+        }
+        protected void setSlowQuerySampling(double rate) {
+            this.slowQuerySampling = rate;
         }
     }
 
     /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
 
-    /** 
-     * The SqlStatement class allows parameterized sql statements to be assembled separately from a
-     * database connection. Parameters are specified as question marks ("?") in the sql statement.
-     * Parameters are then "set" by specifying a 1 based index and a value.
+    /**
+     * A write-behind policy for Def.writeBehind(..).  Up to capacity(..) statements are buffered,
+     * after that callers block until a flush makes room.  The buffer is flushed as soon as it
+     * holds batch(..) statements or its oldest statement is maxAge(..) milliseconds old, which
+     * bounds how much is lost if the process dies.
      */
-    public static class SQL
-    {
+    public static class WriteBehind {
+        private int capacity = 10000;
+        private int batch = 1000;
+        private long maxAge = 250;
+
+        public WriteBehind capacity(int statements) { capacity = statements; return this; }
+        public WriteBehind batch(int statements) { batch = statements; return this; }
+        public WriteBehind maxAge(long millis) { maxAge = millis; return this; }
+
+        public int getCapacity() { return capacity; }
+        public int getBatch() { return batch; }
+        public long getMaxAge() { return maxAge; }
+    }
 
-        private StringBuffer sql1 = new StringBuffer();
-        private Map<Integer, String> values = new HashMap<Integer, String>();
-        private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S z");
+    /**
+     * Buffers the writes to a write-behind table and flushes them as batched transactions on the
+     * background thread.  Also keeps the flush metrics.
+     */
+    public static class WriteBuffer {
+        private final SQLite db;
+        private final String table;
+        private final WriteBehind policy;
+        private final Semaphore room;
+        private final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+        // entries.size() walks the whole queue, so the count is kept on the side
+        private final AtomicInteger size = new AtomicInteger();
+        // a flush task is waiting on the scheduler, for maxAge or for a full batch
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicBoolean full = new AtomicBoolean(false);
+        private final AtomicLong flushed = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        // batch jobs submitted to the job q that haven't finished yet
+        private final Queue<SQLiteJob<Integer>> inFlight = new ConcurrentLinkedQueue<SQLiteJob<Integer>>();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong flushes = new AtomicLong();
+        private volatile double lastLag = 0;
+        private volatile double maxLag = 0;
+
+        WriteBuffer(SQLite db, String table, WriteBehind policy) {
+            this.db = db;
+            this.table = table;
+            this.policy = policy;
+            this.room = new Semaphore(policy.getCapacity(), true);
+        }
 
-        public SQL() {}
-        public SQL(String sql) {
-            sql1.append(sql);
+        /**
+         * Buffers the statement, blocking while the buffer is full.
+         * @param sql
+         * @throws SQLiteException
+         */
+        public void add(SQL sql) throws SQLiteException {
+            if (db._q.isStopped() && !db._evicted) {
+                throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, db.def().getName() + " has been closed and the job q is stopped.");
+            }
+            try {
+                room.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLiteException(SQLiteConstants.SQLITE_INTERRUPT, "Interrupted waiting for room in the " + table + " write-behind buffer.");
+            }
+            entries.add(new Entry(sql));
+
+            if (size.incrementAndGet() >= policy.getBatch()) {
+                if (full.compareAndSet(false, true)) {
+                    SQLite.scheduler().execute(flushTask(full));
+                }
+            }
+            else if (scheduled.compareAndSet(false, true)) {
+                SQLite.scheduler().schedule(flushTask(scheduled), policy.getMaxAge(), TimeUnit.MILLISECONDS);
+            }
         }
 
-        public void chop(String d) {
-            if (sql1.length() > 0 && sql1.lastIndexOf(d) > 0) {
-                if (sql1.substring(sql1.lastIndexOf(d)).equals(d)) {
-                    sql1.delete(sql1.lastIndexOf(d), sql1.length());
+        /**
+         * Buffers the statements of the Tx, leaving out selects (like the one that returns the
+         * row from an Insert).
+         * @param tx
+         * @throws SQLiteException
+         */
+        public void add(Tx tx) throws SQLiteException {
+            for (SQL sql : tx._stmts) {
+                if (!sql.getSql().trim().toLowerCase().startsWith("select")) {
+                    add(sql);
                 }
             }
         }
 
         /**
-         * The set method allows a parameter value to be specified.  The index starts at 1.
-         * @param idx
-         * @param obj
+         * Writes everything buffered and waits for it to commit.
+         * @throws SQLiteException
          */
-        public SQL set(int idx, Object obj) {
+        public void flush() throws SQLiteException {
+            db.flush(this, true);
+        }
 
-            if (obj == null) {
-                return this;
+        public String getTable() { return table; }
+        /** Statements buffered or being written */
+        public int getPending() { return policy.getCapacity() - room.availablePermits(); }
+        /** Statements committed */
+        public long getFlushed() { return flushed.get(); }
+        /** Rows inserted, updated or deleted by the committed statements */
+        public long getWritten() { return written.get(); }
+        /** Statements lost to failed flushes */
+        public long getFailed() { return failed.get(); }
+        /** Transactions committed */
+        public long getFlushes() { return flushes.get(); }
+        /** Milliseconds the oldest statement of the last flush waited before it was committed */
+        public double getLastFlushLag() { return lastLag; }
+        /** Largest flush lag so far */
+        public double getMaxFlushLag() { return maxLag; }
+
+        /**
+         * Returns a task that flushes everything buffered.  It clears its guard before draining,
+         * so anything added after the drain schedules another task.
+         */
+        private Runnable flushTask(final AtomicBoolean guard) {
+            return new Runnable() {
+                public void run() {
+                    guard.set(false);
+                    try {
+                        db.flush(WriteBuffer.this, false);
+                    }
+                    catch (SQLiteException e) {
+                        s_log.severe(db.def().getName() + " couldn't flush " + table + ": " + e.getMessage());
+                    }
+                }
+            };
+        }
+
+        List<Entry> drain() {
+            List<Entry> batch = new ArrayList<Entry>();
+            Entry e;
+            while (batch.size() < policy.getBatch() && (e = entries.poll()) != null) {
+                batch.add(e);
             }
+            size.addAndGet(-batch.size());
+            return batch;
+        }
 
-            String value = obj.toString();
-            if (obj instanceof String) {
-                value = value.replaceAll("\\\\", "\\\\\\\\");
-                value = value.replaceAll("\\?", "\\<Q\\>");
-                value = value.replaceAll(Pattern.quote("'"), Matcher.quoteReplacement("''"));
-                value = "'" + value + "'";
+        void flushed(List<Entry> batch, int rows) {
+            double lag = (System.nanoTime() - batch.get(0).added) / 1000000.0;
+            lastLag = lag;
+            maxLag = Math.max(maxLag, lag);
+            flushes.incrementAndGet();
+            flushed.addAndGet(batch.size());
+            written.addAndGet(rows);
+            room.release(batch.size());
+        }
+
+        void failed(List<Entry> batch, SQLiteException e) {
+            s_log.severe(db.def().getName() + " lost " + batch.size() + " buffered writes to " + table + ": " + e.getMessage());
+            failed.addAndGet(batch.size());
+            room.release(batch.size());
+        }
+
+        static class Entry {
+            final SQL sql;
+            final long added = System.nanoTime();
+
+            Entry(SQL sql) {
+                this.sql = sql;
             }
-            else if (obj instanceof Date) {
-//                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                value = "'" + sdf.format((Date)obj) + "'";
+        }
+    }
+
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+
+    /**
+     * A maintenance policy for a Def.  Once an instance has been idle for idle(..) milliseconds,
+     * and at most once per interval(..), its job q runs a round of maintenance: a WAL checkpoint
+     * when the WAL holds at least checkpoint(..) pages, PRAGMA optimize (or ANALYZE on SQLite
+     * before 3.18) and an incremental vacuum when at least vacuum(..) pages are free.  Each step
+     * runs as a BULK job and the round stops as soon as other work shows up.  Set a threshold to
+     * 0 to skip that step.
+     */
+    public static class Maintenance {
+        private long idle = 60 * 1000;
+        private long interval = 60 * 60 * 1000;
+        private int checkpointPages = 1000;
+        private boolean optimize = true;
+        private int vacuumPages = 1000;
+
+        public Maintenance idle(long millis) { idle = millis; return this; }
+        public Maintenance interval(long millis) { interval = millis; return this; }
+        public Maintenance checkpoint(int pages) { checkpointPages = pages; return this; }
+        public Maintenance optimize(boolean optimize) { this.optimize = optimize; return this; }
+        public Maintenance vacuum(int pages) { vacuumPages = pages; return this; }
+
+        public long getIdle() { return idle; }
+        public long getInterval() { return interval; }
+        public int getCheckpointPages() { return checkpointPages; }
+        public boolean isOptimize() { return optimize; }
+        public int getVacuumPages() { return vacuumPages; }
+    }
+
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+
+    /**
+     * Lanes of the job q.  Jobs within a lane run in the order they were submitted, and the lanes
+     * are served by weighted round robin so each lane gets a share of the q proportional to its
+     * weight.  BULK work still makes progress while INTERACTIVE jobs keep arriving, it just
+     * doesn't get in their way.
+     */
+    public enum Priority {
+        INTERACTIVE(4),
+        BULK(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * A SQLiteJob that knows which lane of the job q it belongs in.
+     */
+    private static abstract class Job<T> extends SQLiteJob<T> {
+        private final Priority priority;
+
+        Job(Priority priority) {
+            this.priority = priority == null ? Priority.INTERACTIVE : priority;
+        }
+
+        Priority priority() {
+            return priority;
+        }
+    }
+
+    /**
+     * A SQLiteQueue that keeps one FIFO lane per Priority and picks the next job with smooth
+     * weighted round robin across the lanes that have work waiting.  SQLiteQueue's hooks take
+     * the raw SQLiteJob type.
+     */
+    @SuppressWarnings("rawtypes")
+    private static class JobQueue extends SQLiteQueue {
+        private final Map<Priority, Deque<SQLiteJob>> lanes = new EnumMap<Priority, Deque<SQLiteJob>>(Priority.class);
+        private final Map<Priority, Integer> credit = new EnumMap<Priority, Integer>(Priority.class);
+
+        JobQueue(File dbFile) {
+            super(dbFile);
+            for (Priority p : Priority.values()) {
+                lanes.put(p, new ArrayDeque<SQLiteJob>());
+                credit.put(p, 0);
             }
-            else if (obj instanceof Boolean) {
-                if ((Boolean)obj) {
-                    value = "'true'";
+        }
+
+        @Override
+        protected synchronized void addJob(SQLiteJob job) {
+            Priority p = job instanceof Job ? ((Job<?>)job).priority() : Priority.INTERACTIVE;
+            lanes.get(p).addLast(job);
+        }
+
+        @Override
+        protected synchronized boolean isJobQueueEmpty() {
+            return pending() == 0;
+        }
+
+        @Override
+        protected synchronized SQLiteJob selectJob() {
+            Priority next = null;
+            int total = 0;
+            for (Priority p : Priority.values()) {
+                if (lanes.get(p).isEmpty()) {
+                    credit.put(p, 0);
+                    continue;
                 }
-                else {
-                    value = "'false'";
+                total += p.getWeight();
+                credit.put(p, credit.get(p) + p.getWeight());
+                if (next == null || credit.get(p) > credit.get(next)) {
+                    next = p;
                 }
             }
-            else if (obj instanceof SQL) {
-                SQL sql = (SQL)obj;
-                value = sql.getSql();
+            if (next == null) {
+                return null;
             }
+            credit.put(next, credit.get(next) - total);
+            return lanes.get(next).pollFirst();
+        }
 
-            values.put(idx, value);
-
-            return this;
-
+        @Override
+        protected synchronized List<SQLiteJob> removeJobsClearQueue() {
+            List<SQLiteJob> list = new ArrayList<SQLiteJob>();
+            for (Deque<SQLiteJob> lane : lanes.values()) {
+                list.addAll(lane);
+                lane.clear();
+            }
+            return list;
         }
 
         /**
-         * Returns the sql statement with parameters replaced with the set values.
+         * Number of jobs waiting in all lanes.
          * @return
          */
-        public String getSql() {
+        synchronized int pending() {
+            int n = 0;
+            for (Deque<SQLiteJob> lane : lanes.values()) {
+                n += lane.size();
+            }
+            return n;
+        }
+    }
 
-            StringBuffer sql2 = new StringBuffer(sql1);
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
 
-            int count = 0;
-            int p1 = -1;
-            int p2 = -1;
-            while ((p1 = sql2.indexOf("?", p2)) > -1 ) {
-                count++;
-                String value = values.get(count);
-                if (value == null) {
-                    value = "NULL";
-                }
-                sql2.replace(p1, p1 + 1, value);
-                p2 = p1 + 1;
-            }
+    /**
+     * Samples the statements run by an instance along with their EXPLAIN QUERY PLAN output,
+     * looks for full table scans and temp B-tree sorts and proposes indexes for them.  The
+     * columns of each proposed index come from the statement: the columns compared for equality
+     * first, then a column compared by range, or the ORDER BY columns.  Proposals are ranked by
+     * the total time spent in the sampled statements that would use them.  Attach an advisor by
+     * constructing it, let the workload run, then look at proposals() or add them to the Def
+     * with schema(..).
+     */
+    public static class IndexAdvisor {
 
-            String sql = sql2.toString();
-            sql = sql.replaceAll(Pattern.quote("<Q>"), Matcher.quoteReplacement("?"));
+        // "SCAN t", "SCAN TABLE t AS a USING COVERING INDEX i" or, before 3.8, "SCAN TABLE t (~100000 rows)"
+        static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\w+)(?: AS (\\w+))?(?: USING (?:COVERING )?INDEX \\w+)?(?: \\(~\\d+ rows\\))?$", Pattern.CASE_INSENSITIVE);
+        private static final Pattern SEARCH = Pattern.compile("^SEARCH (?:TABLE )?(\\w+)(?: AS (\\w+))?", Pattern.CASE_INSENSITIVE);
+        private static final Pattern SORT = Pattern.compile("^USE TEMP B-TREE FOR (?:ORDER|GROUP) BY", Pattern.CASE_INSENSITIVE);
+        private static final Pattern PREDICATE = Pattern.compile("(?:(\\w+)\\.)?(\\w+)\\s*(=|==|<=|>=|<|>|\\bis\\b|\\bin\\b|\\bbetween\\b|\\blike\\b)", Pattern.CASE_INSENSITIVE);
+        private static final Pattern ORDER_BY = Pattern.compile("\\border by (.*?)(?:\\blimit\\b|$)", Pattern.CASE_INSENSITIVE);
+        private static final Pattern WHERE = Pattern.compile("\\bwhere (.*?)(?:\\bgroup by\\b|\\border by\\b|\\blimit\\b|$)", Pattern.CASE_INSENSITIVE);
 
-            return sql;
-        }
+        private final SQLite db;
+        private final double sampling;
+        private final Map<String, Observation> observations = new HashMap<String, Observation>();
 
         /**
-         * Used to build the sql statement.  Appends the specified string to the current statement.
-         * @param s
-         * @return
+         * Attaches a new advisor to the instance, replacing any advisor already attached.
+         * @param db
+         * @param sampling fraction (0 to 1) of statements to sample
          */
-        public SQL append(String s) {
-            sql1.append(s);
-            return this;
+        public IndexAdvisor(SQLite db, double sampling) {
+            this.db = db;
+            this.sampling = sampling;
+            db._advisor = this;
+        }
+
+        public double getSampling() {
+            return sampling;
         }
 
         /**
-         * Resets the parameters.
+         * Detaches this advisor from its instance.  What it has observed so far is kept.
          */
-        public SQL reset() {
-            this.values.clear();
-            return this;
+        public void stop() {
+            if (db._advisor == this) {
+                db._advisor = null;
+            }
         }
 
-        @Override
-        public String toString()
-        {
-            return this.getSql();
+        static boolean isAdvisable(String sql) {
+            String s = sql.trim().toLowerCase();
+            return s.startsWith("select") || s.startsWith("with") || s.startsWith("update") || s.startsWith("delete");
         }
 
+        synchronized void observe(String template, double millis, List<String> plan) {
+            Observation o = observations.get(template);
+            if (o == null) {
+                o = new Observation(plan);
+                observations.put(template, o);
+            }
+            o.count++;
+            o.millis += millis;
+        }
 
-    }
+        /**
+         * Returns the proposed indexes, the most beneficial first.  Columns that the table
+         * doesn't have are left out.
+         * @return
+         * @throws SQLiteException
+         */
+        public List<Proposal> proposals() throws SQLiteException {
 
-    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+            Map<String, Observation> sampled;
+            synchronized (this) {
+                sampled = new HashMap<String, Observation>(observations);
+            }
 
-    public static class Tx {
+            Map<String, Proposal> proposals = new LinkedHashMap<String, Proposal>();
+            Map<String, Set<String>> tableColumns = new HashMap<String, Set<String>>();
+
+            for (Map.Entry<String, Observation> e : sampled.entrySet()) {
+                String template = e.getKey();
+                Observation o = e.getValue();
+
+                // tables the statement scans, by name or alias, and tables it reads at all
+                Map<String, String> scanned = new LinkedHashMap<String, String>();
+                Map<String, String> tables = new LinkedHashMap<String, String>();
+                boolean sorts = false;
+                for (String line : o.plan) {
+                    Matcher m = SCAN.matcher(line.trim());
+                    if (m.find()) {
+                        scanned.put(m.group(2) != null ? m.group(2) : m.group(1), m.group(1));
+                        tables.put(m.group(2) != null ? m.group(2) : m.group(1), m.group(1));
+                    }
+                    m = SEARCH.matcher(line.trim());
+                    if (m.find()) {
+                        tables.put(m.group(2) != null ? m.group(2) : m.group(1), m.group(1));
+                    }
+                    if (SORT.matcher(line.trim()).find()) {
+                        sorts = true;
+                    }
+                }
+                // a sort only has one obvious table to index when the statement reads one table
+                if (sorts && scanned.isEmpty() && tables.size() == 1) {
+                    scanned.putAll(tables);
+                }
 
-        private List<SQL> _stmts = new ArrayList<SQL>();
+                for (Map.Entry<String, String> scan : scanned.entrySet()) {
+                    String alias = scan.getKey();
+                    String table = scan.getValue();
+
+                    Set<String> existing = tableColumns.get(table);
+                    if (existing == null) {
+                        existing = new HashSet<String>();
+                        for (Record r : db.query(new SQL("pragma table_info(" + table + ")"))) {
+                            existing.add(r.getString("name").toLowerCase());
+                        }
+                        tableColumns.put(table, existing);
+                    }
+
+                    List<String> columns = columns(template, alias, table, tables.size() == 1, existing);
+                    if (columns.isEmpty()) {
+                        continue;
+                    }
+
+                    String key = table + columns;
+                    Proposal p = proposals.get(key);
+                    if (p == null) {
+                        p = new Proposal(table, columns);
+                        proposals.put(key, p);
+                    }
+                    p.executions += o.count;
+                    p.benefit += o.millis;
+                    p.statements.add(template);
+                }
+            }
 
-        public Tx add(SQL sql) {
-            _stmts.add(sql);
-            return this;
+            List<Proposal> list = new ArrayList<Proposal>(proposals.values());
+            Collections.sort(list, new Comparator<Proposal>() {
+                public int compare(Proposal a, Proposal b) {
+                    return Double.compare(b.benefit, a.benefit);
+                }
+            });
+            return list;
         }
 
-        public int size() {
-            return _stmts.size() + 2;
+        /**
+         * Adds a create index statement for each proposal to the Def as part of the specified
+         * schema version.  Call migrate() on an instance to create them, and copy them into the
+         * Def's constructor so new databases get them too.
+         * @param def
+         * @param version
+         * @return the proposals that were added
+         * @throws SQLiteException
+         */
+        public List<Proposal> schema(Def def, int version) throws SQLiteException {
+            List<Proposal> list = proposals();
+            for (Proposal p : list) {
+                def.schema(version, new SQL(p.getSql()));
+            }
+            return list;
         }
 
-        public SQL get(int i) {
-            if (i == 0) {
-                return new SQL("BEGIN");
+        /**
+         * Picks the columns of the table the statement filters or sorts on: equality columns,
+         * then one range column, then the ORDER BY columns if nothing was filtered by range.
+         */
+        private static List<String> columns(String template, String alias, String table, boolean only, Set<String> existing) {
+            List<String> equality = new ArrayList<String>();
+            String range = null;
+
+            Matcher where = WHERE.matcher(template);
+            if (where.find()) {
+                Matcher m = PREDICATE.matcher(where.group(1));
+                while (m.find()) {
+                    String column = m.group(2).toLowerCase();
+                    if (!belongs(m.group(1), column, alias, table, only, existing)) {
+                        continue;
+                    }
+                    String op = m.group(3).toLowerCase();
+                    if (op.equals("=") || op.equals("==") || op.equals("is") || op.equals("in")) {
+                        if (!equality.contains(column)) {
+                            equality.add(column);
+                        }
+                    }
+                    else if (range == null && !op.equals("like")) {
+                        range = column;
+                    }
+                }
             }
-            else if (i == (size() - 1)) {
-                return new SQL("COMMIT");
+
+            List<String> columns = new ArrayList<String>(equality);
+            if (range != null) {
+                if (!columns.contains(range)) {
+                    columns.add(range);
+                }
+                return columns;
             }
-            else {
-                return _stmts.get(i - 1);
+
+            Matcher order = ORDER_BY.matcher(template);
+            if (order.find()) {
+                for (String term : order.group(1).split(",")) {
+                    String[] parts = term.trim().split("\\s+")[0].split("\\.");
+                    String qualifier = parts.length > 1 ? parts[0] : null;
+                    String column = parts[parts.length - 1].toLowerCase();
+                    if (!belongs(qualifier, column, alias, table, only, existing)) {
+                        break;
+                    }
+                    if (!columns.contains(column)) {
+                        columns.add(column);
+                    }
+                }
             }
+            return columns;
         }
-    }
 
-    public static class Insert extends Tx {
-        private final String NEXT_VAL = "net.glasmann.base.SQLite.nextValue";
-        private String table;
-        private Map<String, Object> fields = new HashMap<String, Object>();
+        private static boolean belongs(String qualifier, String column, String alias, String table, boolean only, Set<String> existing) {
+            if (!existing.contains(column)) {
+                return false;
+            }
+            if (qualifier == null) {
+                return only;
+            }
+            return qualifier.equalsIgnoreCase(alias) || qualifier.equalsIgnoreCase(table);
+        }
 
-        public Insert(String table) {
-            this.table = table;
+        private static class Observation {
+            final List<String> plan;
+            int count = 0;
+            double millis = 0;
+
+            Observation(List<String> plan) {
+                this.plan = plan;
+            }
         }
+    }
 
-        public Insert field(String name, Object value) { fields.put(name, value); return this;}
-        public Insert field(String name) { fields.put(name, NEXT_VAL); return this;}
+    /**
+     * An index proposed by an IndexAdvisor.
+     */
+    public static class Proposal {
+        private final String table;
+        private final List<String> columns;
+        private final List<String> statements = new ArrayList<String>();
+        private int executions = 0;
+        private double benefit = 0;
+
+        Proposal(String table, List<String> columns) {
+            this.table = table;
+            this.columns = columns;
+        }
 
-        public Insert build() {
+        public String getTable() { return table; }
+        public List<String> getColumns() { return columns; }
+        /** Templates of the sampled statements that would use the index */
+        public List<String> getStatements() { return statements; }
+        /** Number of sampled executions of those statements */
+        public int getExecutions() { return executions; }
+        /** Total milliseconds spent in those statements, the estimated benefit */
+        public double getBenefit() { return benefit; }
 
-            // build the insert statement
-            SQL sql1 = new SQL();
-            sql1.append("insert into ");
-            sql1.append(table).append(" ");
-            sql1.append("(");
-            for (String name : fields.keySet()) {
-                sql1.append(name);
-                sql1.append(",");
-            }
-            sql1.chop(",");
-            sql1.append(") values (");
-            for (String name : fields.keySet()) {
-                sql1.append("?");
-                sql1.append(",");
-            }
-            sql1.chop(",");
-            sql1.append(")");
-            int c = 0;
-            for (String name : fields.keySet()) {
-                c++;
-                Object value = fields.get(name);
-                // Gregg - Check that value is not null before testing if
-                // it is the NEXT_VAL class. 12/10/2015
-                if (null != value && NEXT_VAL.equals(value.toString())) {
-                    value = new SQL("(select max(" + name + ") from " + table + ") + 1");
-                }
-                sql1.set(c, value);
+        public String getSql() {
+            StringBuilder name = new StringBuilder("idx_").append(table);
+            StringBuilder cols = new StringBuilder();
+            for (String column : columns) {
+                name.append("_").append(column);
+                cols.append(cols.length() > 0 ? ", " : "").append(column);
             }
-            add(sql1);
-
-            // build the select statement
-            SQL sql2 = new SQL("select * from " + table + " where ROWID = last_insert_rowid();");
-            add(sql2);
+            return "create index if not exists " + name + " on " + table + " (" + cols + ")";
+        }
 
-            return this;
+        @Override
+        public String toString() {
+            return String.format("%s -- %d executions, %.1fms", getSql(), executions, benefit);
         }
     }
 
-    public static class Upsert extends Tx {
-
-        private String table;
-        private Map<String, Object> keys = new HashMap<String, Object>();
-        private Map<String, Object> insertFields = new HashMap<String, Object>();
-        private Map<String, Object> updateFields = new HashMap<String, Object>();
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
 
-        public Upsert(String table) {
+    /**
+     * A change captured in the change log.  The op is "I" (insert), "U" (update) or "D" (delete)
+     * and the key is the value of the table's key column, read the row itself with it.
+     */
+    public static class Change {
+        private final long seq;
+        private final String table;
+        private final String op;
+        private final Object key;
+        private final String changedAt;
+
+        Change(long seq, String table, String op, Object key, String changedAt) {
+            this.seq = seq;
             this.table = table;
+            this.op = op;
+            this.key = key;
+            this.changedAt = changedAt;
         }
 
-        public Upsert field(String name, Object value) {
-            return field(name, value, false);
+        public long getSeq() { return seq; }
+        public String getTable() { return table; }
+        public String getOp() { return op; }
+        public Object getKey() { return key; }
+        /** UTC time of the change, yyyy-MM-dd HH:mm:ss.SSS */
+        public String getChangedAt() { return changedAt; }
+
+        @Override
+        public String toString() {
+            return seq + " " + op + " " + table + " " + key;
         }
-        public Upsert field(String name, Object value, boolean onlyOnInsert) {
-            if (onlyOnInsert) {
-                insertFields.put(name, value);
-            }
-            else {
-                insertFields.put(name, value);
-                updateFields.put(name, value);
+    }
+
+    /**
+     * Reads the change log a page at a time, remembering its position.  Call next() until it
+     * returns an empty list, then acknowledge() to prune what has been read.
+     */
+    public static class ChangeFeed {
+        private final SQLite db;
+        private final int pageSize;
+        private long seq;
+
+        ChangeFeed(SQLite db, long since, int pageSize) {
+            this.db = db;
+            this.seq = since;
+            this.pageSize = pageSize;
+        }
+
+        /**
+         * Returns the next page of changes, empty when the feed has caught up.
+         * @return
+         * @throws SQLiteException
+         */
+        public List<Change> next() throws SQLiteException {
+            List<Change> page = db.changes(seq, pageSize);
+            if (!page.isEmpty()) {
+                seq = page.get(page.size() - 1).getSeq();
             }
-            return this;
+            return page;
         }
 
-        public Upsert key(String name, Object value) {
-            keys.put(name, value);
-            return this;
+        /**
+         * The sequence number of the last change returned, save it to resume the feed later.
+         */
+        public long position() {
+            return seq;
         }
 
-        public Upsert build() {
+        /**
+         * Prunes every change returned so far from the change log.
+         * @throws SQLiteException
+         */
+        public void acknowledge() throws SQLiteException {
+            db.acknowledge(seq);
+        }
+    }
 
-            // Gregg - Do an Insert or Replace...this will handle
-        	// the upsert.  Also, it sets the last_insert_rowid() 
-        	// so we can get any auto-incremented values generated
-        	// at insert. 12/10/2015
-            // build the insert statement
-            SQL sql1 = new SQL();
-            sql1.append("insert or replace into ");
-            sql1.append(table).append(" ");
-            sql1.append("(");
-            for (String name : keys.keySet()) {
-                sql1.append(name);
-                sql1.append(",");
-            }
-            for (String name : insertFields.keySet()) {
-                sql1.append(name);
-                sql1.append(",");
-            }
-            sql1.chop(",");
-            sql1.append(") values (");
-            for (String name : keys.keySet()) {
-                sql1.append("?");
-                sql1.append(",");
-            }
-            for (String name : insertFields.keySet()) {
-                sql1.append("?");
-                sql1.append(",");
-            }
-            sql1.chop(",");
-            sql1.append(")");
-            int c = 0;
-            for (String name : keys.keySet()) {
-                c++;
-                sql1.set(c, keys.get(name));
-            }
-            for (String name : insertFields.keySet()) {
-                c++;
-                sql1.set(c, insertFields.get(name));
-            }
-            add(sql1);
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
 
-// Gregg - commented out - 12/10/2015
-//            // build the update statement
-//            SQL sql2 = new SQL();
-//            sql2.append("update ");
-//            sql2.append(table).append(" ");
-//            sql2.append("set ");
-//            for (String name : updateFields.keySet()) {
-//                sql2.append(name);
-//                sql2.append(" = ?,");
-//            }
-//            sql2.chop(",");
-//            sql2.append(" where ");
-//            for (String name : keys.keySet()) {
-//                sql2.append(name);
-//                sql2.append(" = ? and ");
-//            }
-//            sql2.chop(" and ");
-//            c = 0;
-//            for (String name : updateFields.keySet()) {
-//                c++;
-//                sql2.set(c, updateFields.get(name));
-//            }
-//            for (String name : keys.keySet()) {
-//                c++;
-//                sql2.set(c, keys.get(name));
-//            }
-//            add(sql2);
-//
-//            // build the select statement
-//            SQL sql3 = new SQL("select * from " + table);
-//            add(sql3);
-//            sql3.append(" where ");
-//            for (String name : keys.keySet()) {
-//                sql3.append(name);
-//                sql3.append(" = ? and ");
-//            }
-//            sql3.chop(" and ");
-//            c = 0;
-//            for (String name : keys.keySet()) {
-//                c++;
-//                sql3.set(c, keys.get(name));
-//            }
+    /**
+     * A statement reported by the slow query log.  Times are in milliseconds.
+     */
+    public static class SlowQuery {
+        private final String database;
+        private final String template;
+        private final String sql;
+        private final double prepareMillis;
+        private final double runMillis;
+        private final int rows;
+        private final List<String> plan;
+
+        SlowQuery(String database, String template, String sql, double prepareMillis, double runMillis, int rows, List<String> plan) {
+            this.database = database;
+            this.template = template;
+            this.sql = sql;
+            this.prepareMillis = prepareMillis;
+            this.runMillis = runMillis;
+            this.rows = rows;
+            this.plan = plan;
+        }
 
-            // build the select statement
-            SQL sql2 = new SQL("select * from " + table + " where ROWID = last_insert_rowid();");
-            add(sql2);
+        public String getDatabase() { return database; }
+        /** The statement with its values replaced by "?" */
+        public String getTemplate() { return template; }
+        /** The statement as it was executed */
+        public String getSql() { return sql; }
+        public double getPrepareMillis() { return prepareMillis; }
+        /** Time spent stepping through the results (or executing a statement that returns no rows) */
+        public double getRunMillis() { return runMillis; }
+        /** Rows returned by a query, or changed by any other statement */
+        public int getRows() { return rows; }
+        /** EXPLAIN QUERY PLAN detail lines */
+        public List<String> getPlan() { return plan; }
 
-            return this;
+        @Override
+        public String toString() {
+            return String.format("Slow query on %s: %.1fms (prepare %.1fms), %d rows: %s plan: %s",
+                    database, prepareMillis + runMillis, prepareMillis, rows, template, plan);
         }
     }
 
-    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
+    /**
+     * Receives the slow query log.  Called on the job q, so implementations should be quick.
+     */
+    public interface SlowQueryListener {
+        void slowQuery(SlowQuery query);
+    }
 
-    public static abstract class Def {
-        private String name;
-        private List<Tx> schemaUpdates = new ArrayList<Tx>();
+    /** ~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~'~.~ */
 
-        protected Def schema(int version, SQL st) {
-            if (schemaUpdates.size() < version) {
-                for (int i = schemaUpdates.size(); i < version; i++) {
-                    schemaUpdates.add(new Tx());
-                }
-            }
-            Tx tx = schemaUpdates.get(version - 1);
-            tx.add(st);
-            return this;
-        }
+    /**
+     * Thrown when a job does not complete within its timeout.  The job has been cancelled and the
+     * statement that was running on the connection interrupted.
+     */
+    public static class QueryTimeoutException extends SQLiteException {
+        private static final long serialVersionUID = 1L;
 
-        public List<Tx> getSchemaUpdates() {
-            return schemaUpdates;
-        }
-        public String getName() {
-            return name;
-        }
-        protected void setName(String name) {
-            this.name = name;
+        public QueryTimeoutException(String message) {
+            super(SQLiteConstants.SQLITE_INTERRUPT, message);
         }
     }
 
@@ -0,0 +1,251 @@
+package net.glasmann.base;
+
+import net.glasmann.base.SQLite.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded load and soak test.  Drives a weighted mix of query, execute(Tx), insert and
+ * upsert calls from many threads against a generated dataset and reports throughput, latency
+ * percentiles, job q depth and heap use as it runs.  Excluded from the default build, run it
+ * with the load profile:
+ *
+ *   mvn -Pload test -Dload.threads=16 -Dload.seconds=300 -Dload.mix=query:70,tx:10,insert:10,upsert:10
+ *
+ * Other settings: load.rows (size of the generated dataset), load.report (seconds between
+ * progress reports).
+ */
+public class SQLiteLoadTest {
+
+    public static class Load extends Def {
+        public Load() {
+            setName("load");
+            schema(1, new SQL()
+                .append("create table if not exists load_table ( ")
+                .append("id integer primary key, ")
+                .append("grp integer not null, ")
+                .append("value text, ")
+                .append("ts integer ")
+                .append(") ")
+            );
+            schema(1, new SQL("create index if not exists idx_load_table_grp on load_table (grp)"));
+        }
+    }
+
+    private static final String[] OPS = {"query", "tx", "insert", "upsert"};
+    private static final int GROUPS = 100;
+
+    private final int threads = Integer.getInteger("load.threads", 8);
+    private final int seconds = Integer.getInteger("load.seconds", 10);
+    private final int rows = Integer.getInteger("load.rows", 10000);
+    private final int report = Integer.getInteger("load.report", 1);
+    private final Map<String, Integer> mix = mix(System.getProperty("load.mix", "query:70,tx:10,insert:10,upsert:10"));
+
+    @org.junit.Test
+    public void testLoad() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "load");
+
+        try {
+
+            final SQLite db = SQLite.db(Load.class, dbf);
+
+            db.execute(new SQL("delete from load_table"));
+            UpsertBatch batch = new UpsertBatch("load_table").key("id").field("grp").field("value").field("ts");
+            for (int i = 1; i <= rows; i++) {
+                batch.row(i, i % GROUPS, "value " + i, System.currentTimeMillis());
+            }
+            db.upsert(batch, Priority.BULK);
+
+            System.out.println(String.format("Load test: %d threads for %ds over %d rows, mix %s", threads, seconds, rows, mix));
+
+            final long deadline = System.currentTimeMillis() + seconds * 1000L;
+            final AtomicLong done = new AtomicLong();
+            final AtomicLong errors = new AtomicLong();
+            final List<Map<String, long[]>> latencies = Collections.synchronizedList(new ArrayList<Map<String, long[]>>());
+            final List<Long> workerIds = Collections.synchronizedList(new ArrayList<Long>());
+
+            ExecutorService workers = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.submit(new Runnable() {
+                    public void run() {
+                        workerIds.add(Thread.currentThread().getId());
+                        Random random = new Random();
+                        Map<String, long[]> mine = new HashMap<String, long[]>();
+                        Map<String, Integer> counts = new HashMap<String, Integer>();
+                        while (System.currentTimeMillis() < deadline) {
+                            String op = pick(random);
+                            long start = System.nanoTime();
+                            try {
+                                runOp(db, op, random);
+                            }
+                            catch (Exception e) {
+                                errors.incrementAndGet();
+                                System.err.println(op + " failed: " + e);
+                                continue;
+                            }
+                            record(mine, counts, op, System.nanoTime() - start);
+                            done.incrementAndGet();
+                        }
+                        for (String op : mine.keySet()) {
+                            mine.put(op, Arrays.copyOf(mine.get(op), counts.get(op)));
+                        }
+                        latencies.add(mine);
+                    }
+                });
+            }
+
+            // progress: throughput, q depth, heap in use and bytes allocated by the workers
+            final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            final long started = System.currentTimeMillis();
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(new Runnable() {
+                long last = 0;
+                public void run() {
+                    long now = done.get();
+                    long allocated = 0;
+                    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+                        synchronized (workerIds) {
+                            for (Long id : workerIds) {
+                                allocated += Math.max(0, ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(id));
+                            }
+                        }
+                    }
+                    System.out.println(String.format("%6.1fs %8d ops/s  q depth %4d  heap %6.1fMB  allocated %8.1fMB  errors %d",
+                            (System.currentTimeMillis() - started) / 1000.0, (now - last) / report, db.pending(),
+                            memory.getHeapMemoryUsage().getUsed() / 1048576.0, allocated / 1048576.0, errors.get()));
+                    last = now;
+                }
+            }, report, report, TimeUnit.SECONDS);
+
+            workers.shutdown();
+            workers.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+            reporter.shutdownNow();
+
+            double elapsed = (System.currentTimeMillis() - started) / 1000.0;
+            System.out.println(String.format("Total: %d ops in %.1fs, %.0f ops/s, %d errors", done.get(), elapsed, done.get() / elapsed, errors.get()));
+            for (String op : OPS) {
+                long[] all = merge(latencies, op);
+                if (all.length == 0) {
+                    continue;
+                }
+                Arrays.sort(all);
+                System.out.println(String.format("%-7s %8d ops %8.0f ops/s  p50 %7.2fms  p90 %7.2fms  p99 %7.2fms  p99.9 %7.2fms  max %7.2fms",
+                        op, all.length, all.length / elapsed,
+                        percentile(all, 50), percentile(all, 90), percentile(all, 99), percentile(all, 99.9), all[all.length - 1] / 1000000.0));
+            }
+
+            assertEquals(0, errors.get());
+            assertTrue(done.get() > 0);
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new SQL("delete from versions where db_name = 'load'"));
+            SQLite.info().close();
+        }
+
+    }
+
+    private void runOp(SQLite db, String op, Random random) throws Exception {
+        if (op.equals("query")) {
+            db.query(new SQL("select * from load_table where grp = ?").set(1, random.nextInt(GROUPS)));
+        }
+        else if (op.equals("tx")) {
+            Tx tx = new Tx();
+            for (int i = 0; i < 10; i++) {
+                tx.add(new SQL("update load_table set value = ?, ts = ? where id = ?")
+                    .set(1, "tx " + random.nextInt()).set(2, System.currentTimeMillis()).set(3, 1 + random.nextInt(rows)));
+            }
+            db.execute(tx, Priority.BULK);
+        }
+        else if (op.equals("insert")) {
+            db.insert(new Insert("load_table")
+                .field("id")
+                .field("grp", random.nextInt(GROUPS))
+                .field("value", "inserted")
+                .field("ts", System.currentTimeMillis())
+                .build()
+            );
+        }
+        else if (op.equals("upsert")) {
+            db.upsert(new Upsert("load_table")
+                .key("id", 1 + random.nextInt(rows * 2))
+                .field("grp", random.nextInt(GROUPS))
+                .field("value", "upserted")
+                .field("ts", System.currentTimeMillis())
+                .build()
+            );
+        }
+    }
+
+    private String pick(Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int r = random.nextInt(total);
+        for (Map.Entry<String, Integer> e : mix.entrySet()) {
+            r -= e.getValue();
+            if (r < 0) {
+                return e.getKey();
+            }
+        }
+        return OPS[0];
+    }
+
+    private static Map<String, Integer> mix(String spec) {
+        Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            if (!Arrays.asList(OPS).contains(kv[0])) {
+                throw new IllegalArgumentException("Unknown op " + kv[0] + " in load.mix, expected one of " + Arrays.toString(OPS));
+            }
+            map.put(kv[0], Integer.valueOf(kv[1]));
+        }
+        return map;
+    }
+
+    private static void record(Map<String, long[]> latencies, Map<String, Integer> counts, String op, long nanos) {
+        long[] list = latencies.get(op);
+        int count = counts.containsKey(op) ? counts.get(op) : 0;
+        if (list == null || count == list.length) {
+            list = list == null ? new long[1024] : Arrays.copyOf(list, list.length * 2);
+            latencies.put(op, list);
+        }
+        list[count] = nanos;
+        counts.put(op, count + 1);
+    }
+
+    private static long[] merge(List<Map<String, long[]>> latencies, String op) {
+        int n = 0;
+        for (Map<String, long[]> map : latencies) {
+            n += map.containsKey(op) ? map.get(op).length : 0;
+        }
+        long[] all = new long[n];
+        int i = 0;
+        for (Map<String, long[]> map : latencies) {
+            if (map.containsKey(op)) {
+                System.arraycopy(map.get(op), 0, all, i, map.get(op).length);
+                i += map.get(op).length;
+            }
+        }
+        return all;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int idx = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1000000.0;
+    }
+}
@@ -1,8 +1,12 @@
 package net.glasmann.base;
 
+import com.almworks.sqlite4java.SQLiteException;
 import net.glasmann.base.SQLite.*;
 
 import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -14,7 +18,7 @@ public class SQLiteTest {
             setName("test");
             schema(1, new SQL()
                 .append("create table if not exists test_table ( ")
-                .append("id integer, ")
+                .append("id integer primary key, ")
                 .append("value text ")
                 .append(") ")
             );
@@ -37,6 +41,84 @@ public class SQLiteTest {
         }
     }
 
+    public static class TestMaintained extends Def {
+        public TestMaintained() {
+            setName("test");
+            setMaintenance(new Maintenance().checkpoint(0).vacuum(0));
+            schema(1, new SQL()
+                .append("create table if not exists test_table ( ")
+                .append("id integer primary key, ")
+                .append("value text ")
+                .append(") ")
+            );
+        }
+    }
+
+    public static class TestMaintainedPages extends Def {
+        public TestMaintainedPages() {
+            setName("test");
+            setMaintenance(new Maintenance().idle(100).interval(0).checkpoint(1).optimize(false).vacuum(1));
+            schema(1, new SQL()
+                .append("create table if not exists test_table ( ")
+                .append("id integer primary key, ")
+                .append("value text ")
+                .append(") ")
+            );
+        }
+    }
+
+    public static class TestSlowLog extends Def {
+        public TestSlowLog() {
+            setName("test");
+            setSlowQueryThreshold(1);
+            schema(1, new SQL()
+                .append("create table if not exists test_table ( ")
+                .append("id integer primary key, ")
+                .append("value text ")
+                .append(") ")
+            );
+        }
+    }
+
+    public static class TestCapture extends Def {
+        public TestCapture() {
+            setName("test");
+            schema(1, new SQL()
+                .append("create table if not exists test_table ( ")
+                .append("id integer primary key, ")
+                .append("value text ")
+                .append(") ")
+            );
+            capture(2, "test_table", "id");
+        }
+    }
+
+    public static class TestWriteBehind extends Def {
+        public TestWriteBehind() {
+            setName("test");
+            schema(1, new SQL()
+                .append("create table if not exists test_table ( ")
+                .append("id integer primary key, ")
+                .append("value text ")
+                .append(") ")
+            );
+            writeBehind("test_table", new WriteBehind().capacity(100).batch(10).maxAge(50));
+        }
+    }
+
+    public static class TestFullText extends Def {
+        public TestFullText() {
+            setName("test");
+            schema(1, new SQL()
+                .append("create table if not exists test_table ( ")
+                .append("id integer primary key, ")
+                .append("value text ")
+                .append(") ")
+            );
+            fullText(2, new FullText("test_fts").content("test_table", "id").column("value"));
+        }
+    }
+
     @org.junit.Test
     public void testUpsert() throws Exception {
 
@@ -186,4 +268,692 @@ public class SQLiteTest {
         }
 
     }
-}
\ No newline at end of file
+
+    @org.junit.Test
+    public void testClassLoading() throws Exception {
+
+        // load SQLite again in a class loader of its own so its static initializer runs here
+        final String name = SQLite.class.getName();
+        URL classes = SQLite.class.getProtectionDomain().getCodeSource().getLocation();
+        final ClassLoader loader = new URLClassLoader(new URL[] {classes}, SQLiteTest.class.getClassLoader()) {
+            protected synchronized Class<?> loadClass(String n, boolean resolve) throws ClassNotFoundException {
+                if (!n.equals(name) && !n.startsWith(name + "$")) {
+                    return super.loadClass(n, resolve);
+                }
+                Class<?> c = findLoadedClass(n);
+                return c != null ? c : findClass(n);
+            }
+        };
+
+        final Object[] info = new Object[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    info[0] = Class.forName(name, true, loader).getMethod("info").invoke(null);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        t.join(30000);
+
+        assertFalse("loading SQLite hung", t.isAlive());
+        assertNotNull(info[0]);
+        info[0].getClass().getMethod("close").invoke(info[0]);
+    }
+
+    @org.junit.Test
+    public void testTimeout() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(Test.class, dbf);
+
+            db.execute(new SQL("delete from test_table"));
+            Tx tx = new Tx();
+            for (int i = 1; i <= 1000; i++) {
+                tx.add(new SQL("insert into test_table (id, value) values (?, ?)").set(1, i).set(2, "test" + i));
+            }
+            db.execute(tx);
+
+            try {
+                // 10^12 rows, long enough to outlast any timeout
+                db.query(new SQL("select count(*) from test_table a, test_table b, test_table c, test_table d"), 200);
+                fail("expected a QueryTimeoutException");
+            }
+            catch (QueryTimeoutException e) {
+                // expected
+            }
+
+            // the runaway query was interrupted so the q is free for the next job
+            db.execute(new SQL("insert into test_table (id, value) values (1001, 'after timeout')"));
+            List<Record> list = db.query(new SQL("select * from test_table where id = 1001"), 1000);
+
+            assertEquals(list.get(0).getString("value"), "after timeout");
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testChunkedBulkTx() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(Test.class, dbf);
+
+            db.execute(new SQL("delete from test_table"));
+
+            Tx tx = new Tx().chunk(3);
+            for (int i = 1; i <= 10; i++) {
+                tx.add(new SQL("insert into test_table (id, value) values (?, ?)").set(1, i).set(2, "bulk " + i));
+            }
+            tx.add(new SQL("select count(*) as n from test_table"));
+
+            List<List<Record>> results = db.execute(tx, Priority.BULK);
+
+            assertEquals(1, results.size());
+            assertEquals(results.get(0).get(0).getInt("n"), Integer.valueOf(10));
+
+            List<Record> list = db.query(new SQL("select * from test_table"), Priority.INTERACTIVE);
+
+            assertEquals(10, list.size());
+
+            // a failing chunk is rolled back and reported, the chunks before it stay committed
+            Tx failing = new Tx().chunk(2)
+                .add(new SQL("insert into test_table (id, value) values (11, 'bulk 11')"))
+                .add(new SQL("insert into test_table (id, value) values (12, 'bulk 12')"))
+                .add(new SQL("insert into test_table (id, value) values (13, 'bulk 13')"))
+                .add(new SQL("insert into test_table (id, missing) values (14, 'bulk 14')"));
+            try {
+                db.execute(failing, Priority.BULK);
+                fail("expected the second chunk to fail");
+            }
+            catch (SQLiteException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("chunk 2 of 2"));
+            }
+            assertEquals(db.query(new SQL("select count(*) as n from test_table")).get(0).getInt("n"), Integer.valueOf(12));
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testUpsertBatch() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(Test.class, dbf);
+
+            db.execute(new SQL("delete from test_table"));
+
+            db.execute(new Tx()
+                .add(new SQL("insert into test_table (id, value) values (1, 'test1')"))
+                .add(new SQL("insert into test_table (id, value) values (2, 'test2')"))
+            );
+
+            int count = db.upsert(new UpsertBatch("test_table")
+                .key("id")
+                .field("value")
+                .row(2, "upserted two")
+                .row(3, "upserted three")
+                .row(4, null)
+            );
+
+            assertEquals(3, count);
+
+            List<Record> list = db.query(new SQL("select * from test_table order by id"));
+
+            assertEquals(4, list.size());
+            assertEquals(list.get(0).getString("value"), "test1");
+            assertEquals(list.get(1).getString("value"), "upserted two");
+            assertEquals(list.get(2).getString("value"), "upserted three");
+            assertNull(list.get(3).getString("value"));
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testEviction() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+        File dbf2 = new File(SQLite.SQLITE_HOME, "testv2");
+
+        try {
+
+            SQLite.setMaxOpen(1);
+
+            SQLite db = SQLite.db(Test.class, dbf);
+            db.execute(new SQL("insert into test_table (id, value) values (1, 'test1')"));
+
+            // opening a second database evicts the first
+            SQLite dbV2 = SQLite.db(TestV2.class, dbf2);
+            dbV2.execute(new SQL("insert into test_table_2 (id, value_2) values (1, 'test1')"));
+
+            assertEquals(1, SQLite.openCount());
+
+            // the evicted instance reopens on its next use, and db(..) hands back the same instance
+            List<Record> list = db.query(new SQL("select * from test_table"));
+            assertEquals(1, list.size());
+            assertTrue(db == SQLite.db(Test.class, dbf));
+
+            assertEquals(1, SQLite.openCount());
+
+            db.close();
+            dbV2.close();
+        }
+        finally {
+            SQLite.setMaxOpen(0);
+            dbf.delete();
+            dbf2.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testMaintain() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(TestMaintained.class, dbf);
+
+            db.execute(new SQL("insert into test_table (id, value) values (1, 'test1')"));
+
+            List<String> done = db.maintain();
+
+            assertEquals(1, done.size());
+            assertTrue(done.get(0).equals("optimized") || done.get(0).equals("analyzed"));
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testMaintainPages() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(TestMaintainedPages.class, dbf);
+
+            // incremental vacuum and WAL can't be switched on inside the schema's transaction
+            db.execute(new SQL("pragma auto_vacuum = incremental"));
+            db.execute(new SQL("vacuum"));
+            db.execute(new SQL("pragma journal_mode = wal"));
+
+            fill(db);
+            List<String> done = db.maintain();
+
+            assertEquals(2, done.size());
+            assertTrue(done.get(0), done.get(0).startsWith("checkpointed"));
+            assertTrue(done.get(1), done.get(1).startsWith("vacuumed"));
+            assertEquals(db.queryLong(new SQL("pragma freelist_count")), Long.valueOf(0));
+
+            // once it has been idle the background check runs the same round by itself
+            fill(db);
+            long deadline = System.currentTimeMillis() + 20000;
+            while (db.queryLong(new SQL("pragma freelist_count")) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(500);
+            }
+            assertEquals(db.queryLong(new SQL("pragma freelist_count")), Long.valueOf(0));
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            new File(dbf.getPath() + "-wal").delete();
+            new File(dbf.getPath() + "-shm").delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    /**
+     * Writes rows to the WAL and deletes them again, leaving free pages behind.
+     */
+    private static void fill(SQLite db) throws SQLiteException {
+        Tx tx = new Tx();
+        for (int i = 1; i <= 200; i++) {
+            tx.add(new SQL("insert into test_table (id, value) values (?, ?)").set(1, i).set(2, String.format("%0500d", i)));
+        }
+        db.execute(tx);
+        db.execute(new SQL("delete from test_table"));
+    }
+
+    @org.junit.Test
+    public void testSlowQueryLog() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+        final List<SlowQuery> logged = new ArrayList<SlowQuery>();
+
+        try {
+
+            SQLite.setSlowQueryListener(new SlowQueryListener() {
+                public void slowQuery(SlowQuery query) {
+                    logged.add(query);
+                }
+            });
+
+            SQLite db = SQLite.db(TestSlowLog.class, dbf);
+
+            db.execute(new SQL("delete from test_table"));
+            Tx tx = new Tx();
+            for (int i = 1; i <= 200; i++) {
+                tx.add(new SQL("insert into test_table (id, value) values (?, ?)").set(1, i).set(2, "test" + i));
+            }
+            db.execute(tx);
+
+            // 8 million rows to join takes well over the 1ms threshold
+            db.query(new SQL("select count(*) from test_table a, test_table b, test_table c where a.id > ?").set(1, 5));
+
+            db.close();
+
+            // the migration's and inserts' statements may show up too, find the query
+            SlowQuery slow = null;
+            for (SlowQuery q : logged) {
+                if (q.getTemplate().startsWith("select count(*)")) {
+                    slow = q;
+                }
+            }
+
+            assertNotNull(slow);
+            assertEquals(slow.getTemplate(), "select count(*) from test_table a, test_table b, test_table c where a.id > ?");
+            assertEquals(1, slow.getRows());
+            assertTrue(slow.getPlan().size() > 0);
+        }
+        finally {
+            SQLite.setSlowQueryListener(null);
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testChangeFeed() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(TestCapture.class, dbf);
+
+            db.execute(new Tx()
+                .add(new SQL("insert into test_table (id, value) values (1, 'test1')"))
+                .add(new SQL("insert into test_table (id, value) values (2, 'test2')"))
+                .add(new SQL("update test_table set value = 'changed' where id = 1"))
+                .add(new SQL("delete from test_table where id = 2"))
+            );
+
+            ChangeFeed feed = db.feed(0, 3);
+
+            List<Change> page = feed.next();
+            assertEquals(3, page.size());
+            assertEquals(page.get(0).getOp(), "I");
+            assertEquals(page.get(2).getOp(), "U");
+            assertEquals(((Number)page.get(2).getKey()).longValue(), 1);
+
+            page = feed.next();
+            assertEquals(1, page.size());
+            assertEquals(page.get(0).getOp(), "D");
+            assertEquals(((Number)page.get(0).getKey()).longValue(), 2);
+
+            assertEquals(0, feed.next().size());
+
+            feed.acknowledge();
+            assertEquals(0, db.changes(0, 100).size());
+
+            // sequence numbers keep increasing after the log is pruned
+            db.execute(new SQL("insert into test_table (id, value) values (3, 'test3')"));
+            List<Change> changes = db.changes(feed.position(), 100);
+            assertEquals(1, changes.size());
+            assertTrue(changes.get(0).getSeq() > feed.position());
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testFullTextSearch() throws Exception {
+
+        // FTS4 external content tables arrived in SQLite 3.7.9, FTS5 is used from 3.9.0
+        org.junit.Assume.assumeTrue(SQLite.sqliteVersion() >= 3007009);
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(TestFullText.class, dbf);
+
+            db.execute(new Tx()
+                .add(new SQL("insert into test_table (id, value) values (1, 'the quick brown fox')"))
+                .add(new SQL("insert into test_table (id, value) values (2, 'the lazy dog')"))
+                .add(new SQL("insert into test_table (id, value) values (3, 'a quick dog and a quick fox')"))
+            );
+            db.execute(new SQL("delete from test_table where id = 1"));
+
+            Search search = db.def().getFullText("test_fts").search("quick")
+                .highlight("value", "[", "]")
+                .page(0, 10)
+                .build();
+
+            List<Record> list = db.query(search);
+
+            assertEquals(1, list.size());
+            assertEquals(list.get(0).getInt("id"), Integer.valueOf(3));
+            assertEquals(list.get(0).getString("value_highlight"), "a [quick] dog and a [quick] fox");
+
+            assertEquals(db.query(search.count()).get(0).getInt("total"), Integer.valueOf(1));
+            assertEquals(db.def().getFullText("test_fts").getModule(), SQLite.sqliteVersion() >= 3009000 ? "fts5" : "fts4");
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testIndexAdvisor() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(Test.class, dbf);
+
+            Tx tx = new Tx();
+            for (int i = 1; i <= 100; i++) {
+                tx.add(new SQL("insert into test_table (id, value) values (?, ?)").set(1, i).set(2, "test" + i));
+            }
+            db.execute(tx);
+
+            IndexAdvisor advisor = new IndexAdvisor(db, 1);
+            for (int i = 1; i <= 10; i++) {
+                db.query(new SQL("select * from test_table where value = ?").set(1, "test" + i));
+            }
+            advisor.stop();
+
+            List<Proposal> proposals = advisor.proposals();
+
+            // full scans as the bundled SQLite (3.7.10) and newer libraries print them
+            assertTrue(IndexAdvisor.SCAN.matcher("SCAN TABLE test_table (~100000 rows)").find());
+            assertTrue(IndexAdvisor.SCAN.matcher("SCAN TABLE test_table AS t USING COVERING INDEX idx (~100000 rows)").find());
+            assertTrue(IndexAdvisor.SCAN.matcher("SCAN test_table").find());
+            assertFalse(IndexAdvisor.SCAN.matcher("SCAN TABLE test_fts VIRTUAL TABLE INDEX 1: (~0 rows)").find());
+
+            assertEquals(1, proposals.size());
+            assertEquals(proposals.get(0).getSql(), "create index if not exists idx_test_table_value on test_table (value)");
+            assertEquals(10, proposals.get(0).getExecutions());
+
+            // once the index exists the same workload has nothing left to propose
+            advisor.schema(db.def(), 2);
+            db.migrate();
+
+            IndexAdvisor after = new IndexAdvisor(db, 1);
+            db.query(new SQL("select * from test_table where value = ?").set(1, "test1"));
+            after.stop();
+
+            assertEquals(0, after.proposals().size());
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testScalarQueries() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(Test.class, dbf);
+
+            db.execute(new Tx()
+                .add(new SQL("insert into test_table (id, value) values (1, '1.5')"))
+                .add(new SQL("insert into test_table (id, value) values (2, '2.5')"))
+                .add(new SQL("insert into test_table (id, value) values (3, null)"))
+            );
+
+            assertEquals(db.queryLong(new SQL("select count(*) from test_table")), Long.valueOf(3));
+            assertEquals(db.queryString(new SQL("select value from test_table where id = ?").set(1, 2)), "2.5");
+            assertEquals(db.queryDouble(new SQL("select sum(value) from test_table")), 4.0, 0.0001);
+            assertNull(db.queryLong(new SQL("select id from test_table where id = 10")));
+            assertNull(db.queryString(new SQL("select value from test_table where id = 3")));
+
+            assertArrayEquals(new long[] {3, 2, 1}, db.queryLongs(new SQL("select id from test_table order by id desc")));
+            assertEquals(0, db.queryLongs(new SQL("select id from test_table where id > 10")).length);
+            assertArrayEquals(new long[] {1, 2, 3}, db.queryLongs(new SQL("select id from test_table order by id"), Priority.BULK, 1000));
+
+            double[] values = db.queryDoubles(new SQL("select value from test_table order by id"));
+            assertEquals(3, values.length);
+            assertEquals(2.5, values[1], 0.0001);
+
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testAttach() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+        File dbf2 = new File(SQLite.SQLITE_HOME, "testv2");
+
+        try {
+
+            SQLite db = SQLite.db(Test.class, dbf);
+            SQLite dbV2 = SQLite.db(TestV2.class, dbf2);
+
+            db.execute(new Tx()
+                .add(new SQL("insert into test_table (id, value) values (1, 'test1')"))
+                .add(new SQL("insert into test_table (id, value) values (2, 'test2')"))
+            );
+            dbV2.execute(new SQL("insert into test_table_2 (id, value_2) values (2, 'other2')"));
+
+            db.attach("other", dbV2);
+
+            List<Record> list = db.query(new SQL("select t.id, t.value, o.value_2 from test_table t join other.test_table_2 o on o.id = t.id"));
+
+            assertEquals(1, list.size());
+            assertEquals(list.get(0).getString("value"), "test2");
+            assertEquals(list.get(0).getString("value_2"), "other2");
+
+            // writes through the other instance's q are visible to the next query
+            dbV2.execute(new SQL("insert into test_table_2 (id, value_2) values (1, 'other1')"));
+            assertEquals(db.queryLong(new SQL("select count(*) from other.test_table_2")), Long.valueOf(2));
+
+            db.detach("other");
+
+            db.close();
+            dbV2.close();
+        }
+        finally {
+            dbf.delete();
+            dbf2.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new Tx()
+                .add(new SQL("delete from versions where db_name = 'test'"))
+                .add(new SQL("delete from versions where db_name = 'testv2'"))
+            );
+            SQLite.info().close();
+        }
+
+    }
+
+    @org.junit.Test
+    public void testWriteBehind() throws Exception {
+
+        File dbf = new File(SQLite.SQLITE_HOME, "test");
+
+        try {
+
+            SQLite db = SQLite.db(TestWriteBehind.class, dbf);
+
+            for (int i = 1; i <= 25; i++) {
+                List<Record> list = db.insert(new Insert("test_table").field("id", i).field("value", "test" + i).build());
+                assertTrue(list.isEmpty());
+            }
+            db.upsert(new Upsert("test_table").key("id", 1).field("value", "upserted").build());
+
+            // the age trigger writes the last partial batch without an explicit flush
+            WriteBuffer buffer = db.buffer("test_table");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (buffer.getPending() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, buffer.getPending());
+            // an upsert is 1 statement with ON CONFLICT, 2 without, so count the rows written
+            assertEquals(26, buffer.getWritten());
+            assertEquals(0, buffer.getFailed());
+            assertTrue(buffer.getFlushes() >= 3);
+            assertTrue(buffer.getMaxFlushLag() >= buffer.getLastFlushLag());
+
+            assertEquals(db.queryLong(new SQL("select count(*) from test_table")), Long.valueOf(25));
+            assertEquals(db.queryString(new SQL("select value from test_table where id = 1")), "upserted");
+
+            // a full batch is flushed in the background, flush() also waits for that batch even
+            // while it's stuck in the BULK lane behind a slow query
+            final SQLite busy = db;
+            Thread slow = new Thread() {
+                public void run() {
+                    try {
+                        busy.query(new SQL("select count(*) from test_table a, test_table b, test_table c, test_table d, test_table e, test_table f"), Priority.BULK, 1000);
+                    }
+                    catch (SQLiteException e) {
+                        // expected to time out
+                    }
+                }
+            };
+            slow.start();
+            Thread.sleep(200);
+            for (int i = 26; i <= 35; i++) {
+                db.insert(new Insert("test_table").field("id", i).field("value", "test" + i).build());
+            }
+            Thread.sleep(200);
+            buffer.flush();
+            assertEquals(db.queryLong(new SQL("select count(*) from test_table")), Long.valueOf(35));
+            slow.join();
+
+            // close() writes whatever is still buffered
+            db.insert(new Insert("test_table").field("id", 36).field("value", "test36").build());
+            db.close();
+
+            db = SQLite.db(TestWriteBehind.class, dbf);
+            assertEquals(db.queryLong(new SQL("select count(*) from test_table")), Long.valueOf(36));
+            db.close();
+        }
+        finally {
+            dbf.delete();
+            SQLite.info().open();
+            SQLite.info().execute(new SQL("delete from versions where db_name = 'test'"));
+            SQLite.info().close();
+        }
+
+    }
+}